@@ -0,0 +1,81 @@
+package me.jduv.java.email.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import me.jduv.java.email.Email;
+import me.jduv.java.email.EmailBody;
+import me.jduv.java.email.EmailBuilder;
+import me.jduv.java.email.EmailTemplate;
+import me.jduv.java.email.SessionProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures Email.Builder.build() as the recipient count grows, split evenly over TO, CC
+ * and BCC. Addresses are parsed up front, so this is the cost of the builder alone.
+ * templateTo() builds the one-recipient email from an EmailTemplate instead, for
+ * comparison with build() at one recipient.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EmailBuildBenchmark {
+    @Param({ "1", "100", "1000" })
+    public int recipients;
+
+    private SessionProvider sessionProvider;
+    private InternetAddress from;
+    private InternetAddress[] addresses;
+    private EmailBody body;
+    private EmailTemplate template;
+
+    @Setup
+    public void setUp() throws AddressException {
+        this.sessionProvider = SessionProvider.unauthenticated("localhost");
+        this.from = new InternetAddress("sender@example.com");
+        this.addresses = new InternetAddress[this.recipients];
+        for (int i = 0; i < this.recipients; i++) {
+            this.addresses[i] = new InternetAddress("user" + i + "@example.com");
+        }
+        this.body = EmailBody.fromString("Hello there!");
+        this.template = new EmailTemplate(this.sessionProvider, this.from, "Benchmark", this.body);
+    }
+
+    @Benchmark
+    public Email templateTo() {
+        return this.template.to(this.addresses[0]);
+    }
+
+    @Benchmark
+    public Email build() {
+        EmailBuilder builder = Email.session(this.sessionProvider)
+                .from(this.from)
+                .subject("Benchmark")
+                .body(this.body)
+                .to(this.addresses[0]);
+
+        for (int i = 1; i < this.addresses.length; i++) {
+            switch (i % 3) {
+            case 0:
+                builder.to(this.addresses[i]);
+                break;
+            case 1:
+                builder.cc(this.addresses[i]);
+                break;
+            default:
+                builder.bcc(this.addresses[i]);
+            }
+        }
+        return builder.build();
+    }
+}
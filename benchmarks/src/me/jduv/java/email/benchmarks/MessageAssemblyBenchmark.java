@@ -0,0 +1,89 @@
+package me.jduv.java.email.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import me.jduv.java.email.Email;
+import me.jduv.java.email.EmailBody;
+import me.jduv.java.email.EmailBodyBuilder;
+import me.jduv.java.email.MessageWriter;
+import me.jduv.java.email.SessionProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the two ways of turning an email into bytes: the MessageWriter used by
+ * Email.send(), and the MimeMessage built by Email.createMessage(). Both are written all
+ * the way out, since that's where MIME does most of its work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageAssemblyBenchmark {
+    @Param({ "0", "65536" })
+    public int attachmentSize;
+
+    private Email email;
+    private MessageWriter writer;
+    private OutputStream sink;
+
+    @Setup
+    public void setUp() throws AddressException {
+        EmailBodyBuilder body = EmailBody.builder()
+                .content("Hello there,\n\nThis is the benchmark message body.\n\nThanks!\n");
+        if (this.attachmentSize > 0) {
+            byte[] attachment = new byte[this.attachmentSize];
+            new Random(42).nextBytes(attachment);
+            body.addFileAttachment(new ByteArrayInputStream(attachment), "data.bin", "application/octet-stream");
+        }
+
+        this.email = Email.session(SessionProvider.unauthenticated("localhost"))
+                .from(new InternetAddress("sender@example.com"))
+                .to(new InternetAddress("to@example.com"))
+                .cc(new InternetAddress("cc@example.com"))
+                .subject("Benchmark")
+                .body(body.build())
+                .build();
+        this.writer = new MessageWriter();
+        this.sink = new NullOutputStream();
+    }
+
+    @Benchmark
+    public ByteBuffer messageWriter() throws MessagingException {
+        return this.writer.render(this.email);
+    }
+
+    @Benchmark
+    public OutputStream mimeMessage() throws MessagingException, IOException {
+        this.email.createMessage().writeTo(this.sink);
+        return this.sink;
+    }
+
+    /**
+     * Throws away everything written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package me.jduv.java.email.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import me.jduv.java.email.Email;
+import me.jduv.java.email.EmailBody;
+import me.jduv.java.email.EmailBuilder;
+import me.jduv.java.email.SessionProvider;
+import me.jduv.java.email.testing.FakeSmtpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures Email.send() end to end, template render included, against a FakeSmtpServer on
+ * the loopback interface. Run with more threads (-t) to see the connection pool at work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+public class SendBenchmark {
+    @Param({ "1", "10" })
+    public int recipients;
+
+    @Param({ "true", "false" })
+    public boolean pipelining;
+
+    private FakeSmtpServer server;
+    private SessionProvider sessionProvider;
+    private InternetAddress from;
+    private InternetAddress[] addresses;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, AddressException {
+        this.server = new FakeSmtpServer.Builder().capture(false).start();
+        this.sessionProvider = new SessionProvider.Builder("127.0.0.1", this.server.getPort())
+                .maxConnections(16)
+                .maxMessagesPerConnection(1000)
+                .pipelining(this.pipelining)
+                .unauthenticated();
+        this.from = new InternetAddress("sender@example.com");
+        this.addresses = new InternetAddress[this.recipients];
+        for (int i = 0; i < this.recipients; i++) {
+            this.addresses[i] = new InternetAddress("user" + i + "@example.com");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.sessionProvider.invalidate();
+        this.server.close();
+    }
+
+    @Benchmark
+    public void send() throws MessagingException {
+        EmailBody body = EmailBody.builder()
+                .delimiter('$')
+                .content("Hello $name$,\n\nThis is the benchmark message body.\n\nThanks!\n")
+                .replace("name", "benchmark")
+                .build();
+
+        EmailBuilder builder = Email.session(this.sessionProvider)
+                .from(this.from)
+                .subject("Benchmark")
+                .body(body);
+        for (InternetAddress address : this.addresses) {
+            builder.to(address);
+        }
+        builder.build().send();
+    }
+}
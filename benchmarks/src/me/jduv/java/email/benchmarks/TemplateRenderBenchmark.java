@@ -0,0 +1,54 @@
+package me.jduv.java.email.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import me.jduv.java.email.EmailBody;
+import me.jduv.java.email.EmailBodyBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures EmailBody.Builder.build() with a varying number of template replacements. With
+ * no replacements the template engine is skipped entirely.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TemplateRenderBenchmark {
+    @Param({ "0", "10", "100" })
+    public int replacements;
+
+    private String content;
+    private String[] tags;
+    private String[] values;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder("Hello there,\n\n");
+        this.tags = new String[this.replacements];
+        this.values = new String[this.replacements];
+        for (int i = 0; i < this.replacements; i++) {
+            this.tags[i] = "field" + i;
+            this.values[i] = "value " + i;
+            builder.append("Line ").append(i).append(": $field").append(i).append("$\n");
+        }
+        builder.append("\nThanks!\n");
+        this.content = builder.toString();
+    }
+
+    @Benchmark
+    public EmailBody build() {
+        EmailBodyBuilder builder = EmailBody.builder().delimiter('$').content(this.content);
+        for (int i = 0; i < this.replacements; i++) {
+            builder.replace(this.tags[i], this.values[i]);
+        }
+        return builder.build();
+    }
+}
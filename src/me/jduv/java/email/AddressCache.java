@@ -0,0 +1,253 @@
+package me.jduv.java.email;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * A bounded cache of parsed and validated addresses. Parsing an InternetAddress means a
+ * full RFC 822 parse and validation every time, and the same addresses show up again and
+ * again: the same senders, the same customers every day. This cache parses each distinct
+ * string once and after that hands back a copy of the result, at the cost of a hash lookup
+ * and a shallow clone. Callers own what they get back and may modify it freely.
+ *
+ * The cache is split into independently locked segments, each least recently used, so
+ * threads rarely wait on each other.
+ */
+public final class AddressCache {
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    private static final int SEGMENTS = 16;
+    private static volatile AddressCache defaultCache = new AddressCache(DEFAULT_MAX_SIZE, false);
+    private final List<Map<String, InternetAddress>> segments;
+    private final boolean checkDomains;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * Initializes a new instance of the AddressCache class.
+     *
+     * @param maxSize
+     *            The maximum number of addresses to keep.
+     * @param checkDomains
+     *            True to also reject addresses whose domain isn't a syntactically valid
+     *            host name or address literal. javax.mail accepts some that aren't.
+     */
+    public AddressCache(int maxSize, boolean checkDomains) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be at least one!");
+        }
+
+        final int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        this.segments = new ArrayList<Map<String, InternetAddress>>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments.add(new LinkedHashMap<String, InternetAddress>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, InternetAddress> eldest) {
+                    return this.size() > segmentSize;
+                }
+            });
+        }
+        this.checkDomains = checkDomains;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Gets the cache the String overloads on EmailBuilder parse with.
+     *
+     * @return The default cache.
+     */
+    public static AddressCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the default cache, for instance with one that checks domains.
+     *
+     * @param cache
+     *            The new default cache.
+     */
+    public static void setDefault(AddressCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("Cache cannot be null!");
+        }
+        defaultCache = cache;
+    }
+
+    /**
+     * Gets whether domains are checked beyond what javax.mail checks.
+     *
+     * @return True if domains are checked, false otherwise.
+     */
+    public boolean isCheckingDomains() {
+        return this.checkDomains;
+    }
+
+    /**
+     * Parses and validates an address, or gets it from the cache if it's been parsed
+     * before. Invalid addresses are never cached.
+     *
+     * @param address
+     *            The address, optionally with a personal name, as in "Jane &lt;jane@example.com&gt;".
+     * @return The parsed address, a copy the caller owns.
+     * @throws AddressException
+     *             If the address is invalid.
+     */
+    public InternetAddress get(String address) throws AddressException {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+
+        Map<String, InternetAddress> segment = this.getSegment(address);
+        InternetAddress parsed;
+        synchronized (segment) {
+            parsed = segment.get(address);
+        }
+        if (parsed != null) {
+            this.hits.incrementAndGet();
+            return (InternetAddress) parsed.clone();
+        }
+
+        // Parse outside the lock. Two threads may race on the same address, which only
+        // costs a redundant parse.
+        this.misses.incrementAndGet();
+        parsed = new InternetAddress(address, true);
+        parsed.validate();
+        if (this.checkDomains) {
+            checkDomain(parsed.getAddress());
+        }
+
+        synchronized (segment) {
+            segment.put(address, parsed);
+        }
+        return (InternetAddress) parsed.clone();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that had to parse.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the share of lookups answered from the cache.
+     *
+     * @return The hit rate, from 0 to 1, or zero if nothing's been looked up.
+     */
+    public double getHitRate() {
+        long hitCount = this.hits.get();
+        long total = hitCount + this.misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Gets the number of cached addresses.
+     *
+     * @return The size.
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, InternetAddress> segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Drops every cached address and resets the statistics.
+     */
+    public void clear() {
+        for (Map<String, InternetAddress> segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        this.hits.set(0);
+        this.misses.set(0);
+    }
+
+    /**
+     * Parses an address through the default cache for the String overloads on
+     * EmailBuilder, turning a bad address into an IllegalArgumentException.
+     *
+     * @param address
+     *            The address.
+     * @param kind
+     *            The header it's for, like "TO", for the error message.
+     * @return The parsed address.
+     */
+    static InternetAddress parseDefault(String address, String kind) {
+        if (address == null) {
+            throw new IllegalArgumentException(kind + " address cannot be null!");
+        }
+        try {
+            return defaultCache.get(address);
+        } catch (AddressException e) {
+            throw new IllegalArgumentException("Invalid " + kind + " address: " + address, e);
+        }
+    }
+
+    private Map<String, InternetAddress> getSegment(String address) {
+        // Spread the hash so segments fill evenly even for similar strings.
+        int hash = address.hashCode();
+        hash ^= hash >>> 16;
+        return this.segments.get(hash & (SEGMENTS - 1));
+    }
+
+    private static void checkDomain(String address) throws AddressException {
+        int at = address.lastIndexOf('@');
+        if (at < 0) {
+            throw new AddressException("Missing domain", address);
+        }
+
+        String domain = address.substring(at + 1);
+        if (domain.startsWith("[") && domain.endsWith("]")) {
+            // An address literal; javax.mail has already checked its brackets.
+            return;
+        }
+        if (domain.length() > 253) {
+            throw new AddressException("Domain is too long", address);
+        }
+
+        String[] labels = domain.toLowerCase(Locale.ENGLISH).split("\\.", -1);
+        if (labels.length < 2) {
+            throw new AddressException("Domain must have at least two labels", address);
+        }
+        for (String label : labels) {
+            if (label.length() < 1 || label.length() > 63) {
+                throw new AddressException("Domain label must be 1 to 63 characters", address);
+            }
+            if (label.charAt(0) == '-' || label.charAt(label.length() - 1) == '-') {
+                throw new AddressException("Domain label cannot start or end with a hyphen", address);
+            }
+            for (int i = 0; i < label.length(); i++) {
+                char c = label.charAt(i);
+                if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '-') {
+                    throw new AddressException("Domain contains an invalid character", address);
+                }
+            }
+        }
+    }
+}
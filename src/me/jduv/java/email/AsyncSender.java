@@ -0,0 +1,377 @@
+package me.jduv.java.email;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+/**
+ * Sends emails off the calling thread. Submissions are bounded: once the configured number
+ * of emails are queued or in flight, callers block until one finishes, so a burst of sends
+ * can't pile up unbounded in memory. On top of that, each SMTP server (host and port) gets
+ * its own limit on concurrent sends.
+ *
+ * Emails wait in a queue per server rather than on a worker thread, so a slow server only
+ * holds up its own mail. Workers take one email at a time and go back to the executor in
+ * between, which keeps busy servers from crowding out the rest.
+ *
+ * Servers are told apart by their provider's getHostAndPort(). A DirectSessionProvider has
+ * no single server, so all of its mail would share one queue and one limit; send direct
+ * mail through a DeliveryScheduler instead.
+ */
+public final class AsyncSender {
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_PER_HOST = 4;
+    private static volatile AsyncSender defaultSender;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Semaphore capacity;
+    private final int maxConcurrentPerHost;
+    private final ConcurrentMap<String, HostQueue> hostQueues;
+    private final AtomicLong queued;
+    private final AtomicLong inFlight;
+    private final AtomicLong completed;
+
+    /**
+     * Initializes a new instance of the AsyncSender class with its own thread pool.
+     *
+     * @param threads
+     *            The number of worker threads.
+     * @param capacity
+     *            The maximum number of emails queued or in flight.
+     * @param maxConcurrentPerHost
+     *            The maximum number of concurrent sends to a single SMTP server.
+     */
+    public AsyncSender(int threads, int capacity, int maxConcurrentPerHost) {
+        this(Executors.newFixedThreadPool(threads, new DaemonThreadFactory()), true, capacity,
+                maxConcurrentPerHost);
+    }
+
+    /**
+     * Initializes a new instance of the AsyncSender class on top of the caller's executor.
+     * The executor is not shut down by this class.
+     *
+     * @param executor
+     *            The executor that runs sends.
+     * @param capacity
+     *            The maximum number of emails queued or in flight.
+     * @param maxConcurrentPerHost
+     *            The maximum number of concurrent sends to a single SMTP server.
+     */
+    public AsyncSender(Executor executor, int capacity, int maxConcurrentPerHost) {
+        this(executor, false, capacity, maxConcurrentPerHost);
+    }
+
+    private AsyncSender(Executor executor, boolean owned, int capacity, int maxConcurrentPerHost) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null!");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one!");
+        }
+        if (maxConcurrentPerHost < 1) {
+            throw new IllegalArgumentException("Max concurrent sends per host must be at least one!");
+        }
+
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService) executor : null;
+        this.capacity = new Semaphore(capacity, true);
+        this.maxConcurrentPerHost = maxConcurrentPerHost;
+        this.hostQueues = new ConcurrentHashMap<String, HostQueue>();
+        this.queued = new AtomicLong();
+        this.inFlight = new AtomicLong();
+        this.completed = new AtomicLong();
+    }
+
+    /**
+     * Creates a sender that runs every email on its own thread, meant for bulk runs with
+     * thousands of SMTP conversations in flight. On a JVM with virtual threads (Java 21
+     * and up) each send gets a virtual thread, so blocked sends cost next to nothing;
+     * older JVMs fall back to an unbounded cached pool of daemon threads. Either way the
+     * number of open connections is held down by the per-host limit, not the thread count.
+     *
+     * @param capacity
+     *            The maximum number of emails queued or in flight.
+     * @param maxConcurrentPerHost
+     *            The maximum number of concurrent sends to a single SMTP server.
+     * @return A thread-per-send sender.
+     */
+    public static AsyncSender threadPerSend(int capacity, int maxConcurrentPerHost) {
+        return new AsyncSender(newThreadPerTaskExecutor(), true, capacity, maxConcurrentPerHost);
+    }
+
+    /**
+     * Gets the shared sender used by Email.sendAsync(), creating it on first use. Its
+     * threads are daemons, so it never holds up JVM shutdown.
+     *
+     * @return The default sender.
+     */
+    public static AsyncSender getDefault() {
+        AsyncSender sender = defaultSender;
+        if (sender == null) {
+            synchronized (AsyncSender.class) {
+                sender = defaultSender;
+                if (sender == null) {
+                    sender = new AsyncSender(DEFAULT_THREADS, DEFAULT_CAPACITY, DEFAULT_MAX_CONCURRENT_PER_HOST);
+                    defaultSender = sender;
+                }
+            }
+        }
+        return sender;
+    }
+
+    /**
+     * Gets the number of additional emails that can be submitted without blocking.
+     *
+     * @return The remaining capacity.
+     */
+    public int getRemainingCapacity() {
+        return this.capacity.availablePermits();
+    }
+
+    /**
+     * Gets the number of accepted emails waiting for a thread or a host slot.
+     *
+     * @return The queued count.
+     */
+    public long getQueuedCount() {
+        return this.queued.get();
+    }
+
+    /**
+     * Gets the number of emails currently talking to a server.
+     *
+     * @return The in-flight count.
+     */
+    public long getInFlightCount() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * Gets the number of emails finished, successfully or not, since this sender was
+     * created.
+     *
+     * @return The completed count.
+     */
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    /**
+     * Queues the target email for sending, blocking while the sender is at capacity. The
+     * returned future always completes normally with a result describing the outcome,
+     * runtime failures during the send included, unless the email couldn't be queued at
+     * all.
+     *
+     * @param email
+     *            The email.
+     * @return A future holding the send result.
+     */
+    public CompletableFuture<SendResult> send(final Email email) {
+        if (email == null) {
+            throw new IllegalArgumentException("Email cannot be null!");
+        }
+
+        final CompletableFuture<SendResult> future = new CompletableFuture<SendResult>();
+        try {
+            this.capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        this.queued.incrementAndGet();
+        HostQueue host = this.getHostQueue(email.getSessionProvider());
+        Task task = new Task(email, future);
+        host.pending.add(task);
+        try {
+            this.schedule(host);
+        } catch (RejectedExecutionException e) {
+            // Only ours to fail if no worker has picked it up in the meantime.
+            if (host.pending.remove(task)) {
+                this.queued.decrementAndGet();
+                this.capacity.release();
+                future.completeExceptionally(e);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Stops accepting work. Queued emails are still sent. Only applies to senders that
+     * own their thread pool.
+     */
+    public void shutdown() {
+        if (this.ownedExecutor != null) {
+            this.ownedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Starts a worker for the target server if it has mail waiting and a free slot.
+     */
+    private void schedule(HostQueue host) {
+        while (!host.pending.isEmpty()) {
+            int active = host.active.get();
+            if (active >= this.maxConcurrentPerHost) {
+                // A running worker will get to it.
+                return;
+            }
+            if (host.active.compareAndSet(active, active + 1)) {
+                try {
+                    this.executor.execute(new Worker(host));
+                } catch (RejectedExecutionException e) {
+                    host.active.decrementAndGet();
+                    throw e;
+                }
+                return;
+            }
+        }
+    }
+
+    private void run(Task task) {
+        this.queued.decrementAndGet();
+        this.inFlight.incrementAndGet();
+        SendResult result;
+        try {
+            result = deliver(task.email);
+        } finally {
+            // Settle the counters before the caller can see the outcome.
+            this.inFlight.decrementAndGet();
+            this.completed.incrementAndGet();
+            this.capacity.release();
+        }
+        task.future.complete(result);
+    }
+
+    private static SendResult deliver(Email email) {
+        try {
+            email.send();
+            return SendResult.success(email);
+        } catch (MessagingException e) {
+            return SendResult.failure(email, e);
+        } catch (RuntimeException e) {
+            // Reported like any other failure, so callers only ever look at the result.
+            return SendResult.failure(email, e);
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor() {
+        // Looked up reflectively so the library still runs on JVMs without virtual threads.
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool(new DaemonThreadFactory());
+        }
+    }
+
+    private HostQueue getHostQueue(SessionProvider provider) {
+        String key = provider.getHostAndPort();
+        HostQueue host = this.hostQueues.get(key);
+        if (host == null) {
+            HostQueue created = new HostQueue();
+            host = this.hostQueues.putIfAbsent(key, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    /**
+     * An email waiting to be sent, along with the future its caller holds.
+     */
+    private static final class Task {
+        private final Email email;
+        private final CompletableFuture<SendResult> future;
+
+        private Task(Email email, CompletableFuture<SendResult> future) {
+            this.email = email;
+            this.future = future;
+        }
+    }
+
+    /**
+     * The emails waiting on one SMTP server, and how many workers are sending to it.
+     */
+    private static final class HostQueue {
+        private final ConcurrentLinkedQueue<Task> pending = new ConcurrentLinkedQueue<Task>();
+        private final AtomicInteger active = new AtomicInteger();
+    }
+
+    /**
+     * Holds one of a server's slots and sends its mail one email per turn on the executor.
+     */
+    private final class Worker implements Runnable {
+        private final HostQueue host;
+
+        private Worker(HostQueue host) {
+            this.host = host;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task = this.host.pending.poll();
+                if (task != null) {
+                    AsyncSender.this.run(task);
+                    if (!this.host.pending.isEmpty()) {
+                        try {
+                            // Keep the slot but give the thread back, so other servers get a turn.
+                            AsyncSender.this.executor.execute(this);
+                            return;
+                        } catch (RejectedExecutionException e) {
+                            // Shutting down; queued mail still goes out, right here.
+                            continue;
+                        }
+                    }
+                }
+
+                this.host.active.decrementAndGet();
+                // Mail queued after the poll above may have seen this worker as active and
+                // not started another, so look once more before leaving.
+                if (this.host.pending.isEmpty() || !this.reclaim()) {
+                    return;
+                }
+            }
+        }
+
+        private boolean reclaim() {
+            while (true) {
+                int active = this.host.active.get();
+                if (active >= AsyncSender.this.maxConcurrentPerHost) {
+                    return false;
+                }
+                if (this.host.active.compareAndSet(active, active + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Names worker threads and marks them as daemons.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "email-async-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+
+/**
+ * An immutable description of an attachment. Body parts can only belong to one multipart,
+ * so an email body holds these instead and asks each one for a fresh part every time a
+ * message is assembled.
+ */
+public interface Attachment {
+
+    /**
+     * Gets the file name.
+     * 
+     * @return The file name.
+     */
+    public String getFileName();
+
+    /**
+     * Creates a new body part for this attachment.
+     * 
+     * @return A new body part.
+     * @throws MessagingException
+     */
+    public BodyPart createBodyPart() throws MessagingException;
+
+    /**
+     * Writes this attachment as a complete MIME part, headers and base64 encoded content,
+     * for MessageWriter.
+     * 
+     * @param out
+     *            The target stream.
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void writeTo(OutputStream out) throws IOException, MessagingException;
+}
@@ -0,0 +1,20 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the bytes of an attachment on demand. Unlike a plain InputStream, a source can be
+ * opened any number of times, so the same attachment can be written out for every message
+ * it's part of without ever being buffered in memory.
+ */
+public interface AttachmentSource {
+
+    /**
+     * Opens a new stream over the attachment's bytes. The caller closes it.
+     * 
+     * @return A new input stream.
+     * @throws IOException
+     */
+    public InputStream open() throws IOException;
+}
@@ -3,8 +3,10 @@ package me.jduv.java.email;
 import java.util.Properties;
 
 import javax.mail.Authenticator;
+import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
+import javax.mail.Transport;
 
 /**
  * Base authenticated session provider.
@@ -68,20 +70,34 @@ public class AuthenticatedSessionProvider extends SessionProvider {
     }
 
     @Override
-    public Session getSession() {
+    protected Session createSession() {
         Properties props = new Properties();
         props.put("mail.smtp.auth", "true");
         props.put("mail.smtp.host", this.getSmtpHost());
         props.put("mail.smtp.port", Integer.toString(this.getPort()));
+        return Session.getInstance(props, this.createAuthenticator());
+    }
 
+    /**
+     * Creates an authenticator that answers with this provider's credentials.
+     * 
+     * @return The authenticator.
+     */
+    protected Authenticator createAuthenticator() {
         final String username = this.getUsername();
         final String password = this.getPassword();
-        return Session.getInstance(props,
-                new Authenticator() {
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(username, password);
-                    }
-                });
+        return new Authenticator() {
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(username, password);
+            }
+        };
+    }
+
+    @Override
+    protected void connect(Transport transport) throws MessagingException {
+        // Hand the credentials over directly rather than round tripping through the
+        // session's authenticator.
+        transport.connect(this.getSmtpHost(), this.getPort(), this.getUsername(), this.getPassword());
     }
 
     /**
@@ -113,6 +129,48 @@ public class AuthenticatedSessionProvider extends SessionProvider {
             super(host, port);
         }
 
+        @Override
+        public Builder maxConnections(int maxConnections) {
+            super.maxConnections(maxConnections);
+            return this;
+        }
+
+        @Override
+        public Builder maxIdleMillis(long maxIdleMillis) {
+            super.maxIdleMillis(maxIdleMillis);
+            return this;
+        }
+
+        @Override
+        public Builder maxMessagesPerConnection(int maxMessagesPerConnection) {
+            super.maxMessagesPerConnection(maxMessagesPerConnection);
+            return this;
+        }
+
+        @Override
+        public Builder pipelining(boolean pipelining) {
+            super.pipelining(pipelining);
+            return this;
+        }
+
+        @Override
+        public Builder messagesPerSecond(double messagesPerSecond) {
+            super.messagesPerSecond(messagesPerSecond);
+            return this;
+        }
+
+        @Override
+        public Builder recipientsPerSecond(double recipientsPerSecond) {
+            super.recipientsPerSecond(recipientsPerSecond);
+            return this;
+        }
+
+        @Override
+        public Builder adaptiveThrottling(boolean adaptiveThrottling) {
+            super.adaptiveThrottling(adaptiveThrottling);
+            return this;
+        }
+
         @Override
         public String getUsername() {
             return this.username;
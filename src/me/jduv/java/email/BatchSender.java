@@ -0,0 +1,412 @@
+package me.jduv.java.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Sends many emails over as few connections as possible. Where Email.send() borrows a
+ * connection for one message, a batch holds on to one connection and pushes every message
+ * through it, only reconnecting when the connection breaks or hits the provider's
+ * per-connection message cap.
+ *
+ * A batch can also combine emails that differ only in their recipients, sending one copy
+ * of the content to all of them in a single transaction. See sendCombined.
+ */
+public final class BatchSender {
+    /**
+     * RFC 5321 requires servers to accept at least this many recipients per message.
+     */
+    public static final int DEFAULT_MAX_RECIPIENTS_PER_MESSAGE = 100;
+    private final SessionProvider sessionProvider;
+    private final int maxRecipientsPerMessage;
+
+    /**
+     * Initializes a new instance of the BatchSender class.
+     *
+     * @param sessionProvider
+     *            The session provider every email in a batch must share.
+     */
+    public BatchSender(SessionProvider sessionProvider) {
+        this(sessionProvider, DEFAULT_MAX_RECIPIENTS_PER_MESSAGE);
+    }
+
+    /**
+     * Initializes a new instance of the BatchSender class.
+     *
+     * @param sessionProvider
+     *            The session provider every email in a batch must share.
+     * @param maxRecipientsPerMessage
+     *            The most envelope recipients sendCombined puts in one transaction.
+     */
+    public BatchSender(SessionProvider sessionProvider, int maxRecipientsPerMessage) {
+        if (sessionProvider == null) {
+            throw new IllegalArgumentException("Session provider cannot be null!");
+        }
+        if (sessionProvider instanceof DirectSessionProvider) {
+            throw new IllegalArgumentException("BatchSender needs a relay; direct delivery has no server to pool!");
+        }
+        if (maxRecipientsPerMessage < 1) {
+            throw new IllegalArgumentException("Max recipients per message must be at least one!");
+        }
+        this.sessionProvider = sessionProvider;
+        this.maxRecipientsPerMessage = maxRecipientsPerMessage;
+    }
+
+    /**
+     * Gets the session provider.
+     *
+     * @return The session provider.
+     */
+    public SessionProvider getSessionProvider() {
+        return this.sessionProvider;
+    }
+
+    /**
+     * Gets the most envelope recipients sendCombined puts in one transaction.
+     *
+     * @return The recipient limit.
+     */
+    public int getMaxRecipientsPerMessage() {
+        return this.maxRecipientsPerMessage;
+    }
+
+    /**
+     * Sends every email in the target batch. A failure on one email never stops the rest;
+     * each email gets its own result, in iteration order. The batch is checked for nulls
+     * before anything is sent.
+     *
+     * @param emails
+     *            The emails to send.
+     * @return One result per email.
+     */
+    public List<SendResult> send(Iterable<Email> emails) {
+        if (emails == null) {
+            throw new IllegalArgumentException("Emails cannot be null!");
+        }
+
+        List<Email> batch = new ArrayList<Email>();
+        for (Email email : emails) {
+            batch.add(email);
+        }
+        return this.sendAll(batch, null);
+    }
+
+    /**
+     * Sends emails that were already serialized, like those prepared in parallel by a
+     * mail merge.
+     *
+     * @param emails
+     *            The emails to send.
+     * @param messages
+     *            Each email's serialized message, in the same order.
+     * @return One result per email.
+     */
+    List<SendResult> send(List<Email> emails, List<? extends Message> messages) {
+        if (emails.size() != messages.size()) {
+            throw new IllegalArgumentException("Every email needs exactly one message!");
+        }
+        return this.sendAll(emails, messages.iterator());
+    }
+
+    private List<SendResult> sendAll(List<Email> emails, Iterator<? extends Message> prepared) {
+        for (Email email : emails) {
+            if (email == null) {
+                throw new IllegalArgumentException("Emails cannot contain null!");
+            }
+        }
+
+        TransportPool pool = this.sessionProvider.getTransportPool();
+        int maxMessages = this.sessionProvider.getMaxMessagesPerConnection();
+        List<SendResult> results = new ArrayList<SendResult>();
+        TransportPool.Connection connection = null;
+        MessageWriter writer = new MessageWriter();
+
+        try {
+            for (Email email : emails) {
+                Message message = prepared == null ? null : prepared.next();
+                if (email.getSessionProvider() != this.sessionProvider) {
+                    results.add(SendResult.failure(email, new IllegalArgumentException(
+                            "Email does not belong to this batch's session provider!")));
+                    continue;
+                }
+
+                if (message == null) {
+                    try {
+                        message = writer.serialize(email);
+                    } catch (MessagingException e) {
+                        results.add(SendResult.failure(email, e));
+                        continue;
+                    }
+                }
+
+                if (connection != null && connection.getMessageCount() >= maxMessages) {
+                    pool.release(connection);
+                    connection = null;
+                }
+                try {
+                    if (connection == null) {
+                        connection = pool.borrow();
+                    }
+                    connection.send(message, message.getAllRecipients());
+                    results.add(SendResult.success(email));
+                } catch (SendFailedException e) {
+                    // Refused recipients don't hurt the connection.
+                    results.add(SendResult.failure(email, e));
+                } catch (MessagingException e) {
+                    results.add(SendResult.failure(email, e));
+                    if (connection != null) {
+                        pool.invalidate(connection);
+                        connection = null;
+                    }
+                } catch (RuntimeException e) {
+                    // There's no telling what state the conversation was left in.
+                    results.add(SendResult.failure(email, e));
+                    if (connection != null) {
+                        pool.invalidate(connection);
+                        connection = null;
+                    }
+                }
+            }
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Sends every email in the target batch, combining emails with the same sender,
+     * subject and body into as few SMTP transactions as the recipient limit allows. Each
+     * transaction carries the content once, with one RCPT TO per recipient.
+     *
+     * Recipients stay as private as they would be with separate sends. If the combined
+     * emails all have the same To and Cc, those headers are kept and everyone else rides
+     * along as BCC. Otherwise the message goes out addressed to undisclosed recipients, so
+     * no one sees anyone else's address.
+     *
+     * Each email still gets its own result, in iteration order. A recipient the server
+     * refuses doesn't hold up the rest of the transaction; only the emails that recipient
+     * belongs to fail.
+     *
+     * @param emails
+     *            The emails to send.
+     * @return One result per email.
+     */
+    public List<SendResult> sendCombined(Iterable<Email> emails) {
+        if (emails == null) {
+            throw new IllegalArgumentException("Emails cannot be null!");
+        }
+
+        // Group by content, keeping each email's position so results come back in order.
+        List<Email> all = new ArrayList<Email>();
+        Map<ContentKey, List<Integer>> groups = new LinkedHashMap<ContentKey, List<Integer>>();
+        for (Email email : emails) {
+            if (email == null) {
+                throw new IllegalArgumentException("Emails cannot contain null!");
+            }
+            ContentKey key = new ContentKey(email);
+            List<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(key, group);
+            }
+            group.add(all.size());
+            all.add(email);
+        }
+
+        SendResult[] results = new SendResult[all.size()];
+        TransportPool pool = this.sessionProvider.getTransportPool();
+        int maxMessages = this.sessionProvider.getMaxMessagesPerConnection();
+        TransportPool.Connection connection = null;
+        MessageWriter writer = new MessageWriter();
+
+        try {
+            for (List<Integer> group : groups.values()) {
+                int start = 0;
+                while (start < group.size()) {
+                    // Fill a transaction up to the recipient limit. An email over the limit
+                    // on its own still goes out alone, as it would with send.
+                    List<Email> chunk = new ArrayList<Email>();
+                    int recipients = 0;
+                    int end = start;
+                    while (end < group.size()) {
+                        Email email = all.get(group.get(end));
+                        int count = email.getRecipientCount();
+                        if (!chunk.isEmpty() && recipients + count > this.maxRecipientsPerMessage) {
+                            break;
+                        }
+                        chunk.add(email);
+                        recipients += count;
+                        end++;
+                    }
+
+                    Email first = chunk.get(0);
+                    if (first.getSessionProvider() != this.sessionProvider) {
+                        for (int i = start; i < end; i++) {
+                            results[group.get(i)] = SendResult.failure(all.get(group.get(i)), new IllegalArgumentException(
+                                    "Email does not belong to this batch's session provider!"));
+                        }
+                        start = end;
+                        continue;
+                    }
+
+                    Exception failure = null;
+                    try {
+                        Message message = createMessage(writer, chunk);
+                        if (connection != null && connection.getMessageCount() >= maxMessages) {
+                            pool.release(connection);
+                            connection = null;
+                        }
+                        if (connection == null) {
+                            connection = pool.borrow();
+                        }
+                        connection.send(message, message.getAllRecipients());
+                    } catch (SendFailedException e) {
+                        failure = e;
+                    } catch (MessagingException e) {
+                        failure = e;
+                        if (connection != null) {
+                            pool.invalidate(connection);
+                            connection = null;
+                        }
+                    } catch (RuntimeException e) {
+                        // The transaction may be half done, so the connection can't be trusted.
+                        failure = e;
+                        if (connection != null) {
+                            pool.invalidate(connection);
+                            connection = null;
+                        }
+                    }
+
+                    for (int i = start; i < end; i++) {
+                        Email email = all.get(group.get(i));
+                        results[group.get(i)] = isAccepted(email, failure) ?
+                                SendResult.success(email) :
+                                    SendResult.failure(email, failure);
+                    }
+                    start = end;
+                }
+            }
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private SerializedMessage createMessage(MessageWriter writer, List<Email> chunk) throws MessagingException {
+        Email first = chunk.get(0);
+        if (chunk.size() == 1) {
+            return writer.serialize(first);
+        }
+
+        boolean sameHeaders = true;
+        Set<InternetAddress> recipients = new HashSet<InternetAddress>();
+        List<Address> envelope = new ArrayList<Address>();
+        for (Email email : chunk) {
+            sameHeaders &= email.getToAddresses().equals(first.getToAddresses())
+                    && email.getCcAddresses().equals(first.getCcAddresses());
+            addRecipients(email.getToAddresses(), recipients, envelope);
+            addRecipients(email.getCcAddresses(), recipients, envelope);
+            addRecipients(email.getBccAddresses(), recipients, envelope);
+        }
+
+        SerializedMessage message = writer.serialize(first, !sameHeaders, envelope.toArray(new Address[envelope.size()]));
+        // Without this, one refused RCPT would fail every email in the chunk.
+        message.setSendPartial(true);
+        return message;
+    }
+
+    private static void addRecipients(List<InternetAddress> addresses, Set<InternetAddress> seen,
+            List<Address> envelope) {
+        for (InternetAddress address : addresses) {
+            if (seen.add(address)) {
+                envelope.add(address);
+            }
+        }
+    }
+
+    private static boolean isAccepted(Email email, Exception failure) {
+        if (failure == null) {
+            return true;
+        }
+        if (!(failure instanceof SendFailedException)) {
+            return false;
+        }
+
+        Address[] sent = ((SendFailedException) failure).getValidSentAddresses();
+        if (sent == null) {
+            return false;
+        }
+        Set<Address> accepted = new HashSet<Address>(Arrays.asList(sent));
+        return accepted.containsAll(email.getToAddresses())
+                && accepted.containsAll(email.getCcAddresses())
+                && accepted.containsAll(email.getBccAddresses());
+    }
+
+    /**
+     * Identifies emails whose bytes would be the same apart from their recipient headers.
+     */
+    private static final class ContentKey {
+        private final SessionProvider sessionProvider;
+        private final String fromAddress;
+        private final String subject;
+        private final String content;
+        private final String type;
+        private final List<Attachment> attachments;
+        private final int hash;
+
+        private ContentKey(Email email) {
+            EmailBody body = email.getBody();
+            this.sessionProvider = email.getSessionProvider();
+            // The display name counts too; it ends up in the From header.
+            this.fromAddress = email.getFromAddress().toString();
+            this.subject = email.getSubject();
+            this.content = body.getContent();
+            this.type = body.getType();
+            this.attachments = body.getAttachments();
+            this.hash = Arrays.hashCode(new Object[] {
+                    this.sessionProvider, this.fromAddress, this.subject, this.content, this.type, this.attachments });
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ContentKey)) {
+                return false;
+            }
+            ContentKey key = (ContentKey) other;
+            return this.hash == key.hash
+                    && this.sessionProvider == key.sessionProvider
+                    && this.fromAddress.equals(key.fromAddress)
+                    && equal(this.subject, key.subject)
+                    && equal(this.content, key.content)
+                    && equal(this.type, key.type)
+                    && this.attachments.equals(key.attachments);
+        }
+
+        private static boolean equal(Object left, Object right) {
+            return left == null ? right == null : left.equals(right);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches another resolver's answers in memory. Answers live for the positive TTL, and
+ * domains that don't exist are remembered for the negative TTL, so a bad address in every
+ * batch doesn't mean a DNS round trip per message. If a lookup fails for any other reason,
+ * like a timeout, the last good answer is served past its expiry rather than failing mail
+ * that would have gone through a minute ago.
+ *
+ * JNDI doesn't hand back record TTLs, so the TTLs here are fixed. By default they follow the
+ * JVM's own DNS cache settings, networkaddress.cache.ttl and
+ * networkaddress.cache.negative.ttl, falling back to five minutes and one minute.
+ */
+public final class CachingMxResolver implements MxResolver {
+    public static final long DEFAULT_TTL_MILLIS = 300000L;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 60000L;
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    private final MxResolver resolver;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * Initializes a new instance of the CachingMxResolver class with the JVM's TTLs.
+     *
+     * @param resolver
+     *            The resolver to cache.
+     */
+    public CachingMxResolver(MxResolver resolver) {
+        this(resolver,
+                getSecurityTtl("networkaddress.cache.ttl", DEFAULT_TTL_MILLIS),
+                getSecurityTtl("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL_MILLIS),
+                DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Initializes a new instance of the CachingMxResolver class.
+     *
+     * @param resolver
+     *            The resolver to cache.
+     * @param ttlMillis
+     *            How long answers are kept.
+     * @param negativeTtlMillis
+     *            How long domains that don't exist are remembered.
+     * @param maxSize
+     *            The most domains to keep. The least recently used domain is dropped when
+     *            it fills up.
+     */
+    public CachingMxResolver(MxResolver resolver, long ttlMillis, long negativeTtlMillis, final int maxSize) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("Resolver cannot be null!");
+        }
+        if (ttlMillis < 0 || negativeTtlMillis < 0) {
+            throw new IllegalArgumentException("TTL cannot be negative!");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be at least one!");
+        }
+
+        this.resolver = resolver;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    @Override
+    public List<String> resolve(String domain) throws IOException {
+        if (domain == null) {
+            throw new IllegalArgumentException("Domain cannot be null!");
+        }
+
+        String key = domain.toLowerCase(Locale.ENGLISH);
+        long now = System.currentTimeMillis();
+        Entry entry = this.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            this.hits.incrementAndGet();
+            return entry.answer();
+        }
+
+        // Two threads may race on the same domain, which only costs a redundant lookup.
+        this.misses.incrementAndGet();
+        try {
+            List<String> hosts = Collections.unmodifiableList(new ArrayList<String>(this.resolver.resolve(key)));
+            this.put(key, new Entry(hosts, null, now + this.ttlMillis));
+            return hosts;
+        } catch (UnknownHostException e) {
+            this.put(key, new Entry(null, e, now + this.negativeTtlMillis));
+            throw e;
+        } catch (IOException e) {
+            if (entry != null && entry.hosts != null) {
+                return entry.hosts;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the cached answer for the target domain without looking anything up, for
+     * callers that mustn't block on DNS.
+     *
+     * @param domain
+     *            The domain.
+     * @return The hosts, which are empty if the domain has no MX records, or null if there's
+     *         no live answer cached.
+     * @throws UnknownHostException
+     *             If the domain is cached as not existing.
+     */
+    public List<String> peek(String domain) throws UnknownHostException {
+        if (domain == null) {
+            throw new IllegalArgumentException("Domain cannot be null!");
+        }
+
+        Entry entry = this.get(domain.toLowerCase(Locale.ENGLISH));
+        if (entry == null || System.currentTimeMillis() >= entry.expiresAt) {
+            return null;
+        }
+        return entry.answer();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of lookups passed to the cached resolver.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the number of cached domains, expired or not.
+     *
+     * @return The size.
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Drops every cached answer.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    private Entry get(String key) {
+        synchronized (this.entries) {
+            return this.entries.get(key);
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (this.entries) {
+            this.entries.put(key, entry);
+        }
+    }
+
+    private static long getSecurityTtl(String property, long defaultMillis) {
+        try {
+            String value = Security.getProperty(property);
+            if (value != null) {
+                long seconds = Long.parseLong(value.trim());
+                // Negative means "forever" to the JVM; a day is close enough for mail.
+                return seconds < 0 ? 86400000L : seconds * 1000L;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the default.
+        } catch (SecurityException e) {
+            // Fall through to the default.
+        }
+        return defaultMillis;
+    }
+
+    /**
+     * A cached answer: either the hosts or the reason the domain doesn't exist.
+     */
+    private static final class Entry {
+        private final List<String> hosts;
+        private final UnknownHostException failure;
+        private final long expiresAt;
+
+        private Entry(List<String> hosts, UnknownHostException failure, long expiresAt) {
+            this.hosts = hosts;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+
+        private List<String> answer() throws UnknownHostException {
+            if (this.failure != null) {
+                throw new UnknownHostException(this.failure.getMessage());
+            }
+            return this.hosts;
+        }
+    }
+}
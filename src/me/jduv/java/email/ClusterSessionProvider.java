@@ -0,0 +1,619 @@
+package me.jduv.java.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Spreads sends over several relays. Each send goes to one member provider, picked by the
+ * cluster's strategy from the members that are currently healthy. A send that fails for
+ * reasons that have to do with the relay, like a refused connection or a 4xx reply, is
+ * retried on another member. A member that fails enough times in a row is taken out of
+ * rotation; once its probe interval has passed, a background thread opens a test
+ * connection to it, with short timeouts and without logging in, and puts it back if the
+ * relay answers. Sends never wait on a probe.
+ *
+ * Paths that borrow connections straight from getTransportPool(), like BatchSender, share
+ * a pool for the whole cluster. Each new connection in it is opened on a member picked by
+ * the strategy, failing over to the others if that member can't be reached, so a caller
+ * that drops a broken connection gets its next one from a healthy member. Members' own
+ * rate limits don't apply on that path.
+ */
+public class ClusterSessionProvider extends SessionProvider {
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 30000L;
+    private static final long PROBE_TIMEOUT_MILLIS = 10000L;
+    private static final ExecutorService PROBES = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "email-cluster-probe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final List<Member> members;
+    private final Strategy strategy;
+    private final int maxFailures;
+    private final long probeIntervalMillis;
+    private final AtomicInteger next;
+
+    /**
+     * How a cluster picks the member for each send.
+     */
+    public enum Strategy {
+        /**
+         * Takes turns.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * Picks the member with the fewest sends in flight.
+         */
+        LEAST_IN_FLIGHT,
+
+        /**
+         * Picks the member with the lowest recent latency, weighted by its sends in
+         * flight, so slow relays get less traffic.
+         */
+        LATENCY_WEIGHTED
+    }
+
+    /**
+     * Initializes a new instance of the ClusterSessionProvider class.
+     *
+     * @param builder
+     *            The builder.
+     */
+    public ClusterSessionProvider(Builder builder) {
+        super(checkMembers(builder));
+
+        List<Member> members = new ArrayList<Member>();
+        for (SessionProvider provider : builder.getMembers()) {
+            members.add(new Member(provider));
+        }
+        this.members = Collections.unmodifiableList(members);
+        this.strategy = builder.getStrategy();
+        this.maxFailures = builder.getMaxFailures();
+        this.probeIntervalMillis = builder.getProbeIntervalMillis();
+        this.next = new AtomicInteger();
+    }
+
+    /**
+     * Gets the member providers.
+     *
+     * @return An unmodifiable list of providers.
+     */
+    public List<SessionProvider> getMembers() {
+        List<SessionProvider> providers = new ArrayList<SessionProvider>();
+        for (Member member : this.members) {
+            providers.add(member.provider);
+        }
+        return Collections.unmodifiableList(providers);
+    }
+
+    /**
+     * Gets the strategy used to pick a member for each send.
+     *
+     * @return The strategy.
+     */
+    public Strategy getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * Checks to see if the target member is currently in rotation.
+     *
+     * @param provider
+     *            The member provider.
+     * @return True if the member is healthy, false otherwise.
+     */
+    public boolean isHealthy(SessionProvider provider) {
+        return this.getMember(provider).isHealthy();
+    }
+
+    /**
+     * Gets the number of sends the target member has in flight.
+     *
+     * @param provider
+     *            The member provider.
+     * @return The in flight count.
+     */
+    public int getInFlightCount(SessionProvider provider) {
+        return this.getMember(provider).inFlight.get();
+    }
+
+    /**
+     * Gets the target member's recent send latency, as a moving average.
+     *
+     * @param provider
+     *            The member provider.
+     * @return The latency in milliseconds, or zero if nothing's been sent yet.
+     */
+    public double getLatencyMillis(SessionProvider provider) {
+        return this.getMember(provider).latencyNanos / 1000000.0;
+    }
+
+    @Override
+    public String getHostAndPort() {
+        StringBuilder builder = new StringBuilder();
+        for (Member member : this.members) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(member.provider.getHostAndPort());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sends a message through a member, failing over to the others if the member can't
+     * take it. Permanent (5xx) replies aren't retried, since another relay wouldn't do any
+     * better. Neither is a message a member took for some recipients, since another relay
+     * would deliver it to them a second time.
+     *
+     * @param message
+     *            The message to send.
+     * @throws MessagingException
+     *             The last member's failure, if none of them could take the message.
+     */
+    @Override
+    public void send(Message message) throws MessagingException {
+        List<Member> tried = new ArrayList<Member>(this.members.size());
+        MessagingException failure = null;
+
+        Member member;
+        while ((member = this.select(tried)) != null) {
+            tried.add(member);
+            member.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                member.provider.send(message);
+                member.succeeded(System.nanoTime() - start);
+                return;
+            } catch (MessagingException e) {
+                if (SmtpErrors.isPermanent(e) || SmtpErrors.isRecipientFailure(e)) {
+                    member.succeeded(System.nanoTime() - start);
+                    throw e;
+                }
+                member.failed(this.maxFailures, this.probeIntervalMillis);
+                failure = e;
+            } finally {
+                member.inFlight.decrementAndGet();
+            }
+        }
+
+        if (failure == null) {
+            throw new MessagingException("No healthy relays available in " + this.getHostAndPort() + ".");
+        }
+        throw failure;
+    }
+
+    /**
+     * Opens a connection on a member, failing over to the others if the member can't be
+     * reached. This is how the cluster's own pool gets its connections.
+     *
+     * @return A connected transport.
+     * @throws MessagingException
+     *             The last member's failure, if none of them could be reached.
+     */
+    @Override
+    public Transport openTransport() throws MessagingException {
+        List<Member> tried = new ArrayList<Member>(this.members.size());
+        MessagingException failure = null;
+
+        Member member;
+        while ((member = this.select(tried)) != null) {
+            tried.add(member);
+            try {
+                return member.provider.openTransport();
+            } catch (MessagingException e) {
+                member.failed(this.maxFailures, this.probeIntervalMillis);
+                failure = e;
+            }
+        }
+
+        if (failure == null) {
+            throw new MessagingException("No healthy relays available in " + this.getHostAndPort() + ".");
+        }
+        throw failure;
+    }
+
+    /**
+     * Invalidates every member.
+     */
+    @Override
+    public void invalidate() {
+        super.invalidate();
+        for (Member member : this.members) {
+            member.provider.invalidate();
+        }
+    }
+
+    /**
+     * Messages only use their session for properties, so the first member's does.
+     *
+     * @return The first member's session.
+     */
+    @Override
+    protected Session createSession() {
+        return this.members.get(0).provider.getSession();
+    }
+
+    private Member select(List<Member> exclude) {
+        List<Member> candidates = new ArrayList<Member>(this.members.size());
+        for (Member member : this.members) {
+            if (member.isHealthy()) {
+                if (!exclude.contains(member)) {
+                    candidates.add(member);
+                }
+            }
+            else {
+                member.probeLater(this.probeIntervalMillis);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        switch (this.strategy) {
+        case LEAST_IN_FLIGHT:
+            Member least = candidates.get(0);
+            for (Member candidate : candidates) {
+                if (candidate.inFlight.get() < least.inFlight.get()) {
+                    least = candidate;
+                }
+            }
+            return least;
+        case LATENCY_WEIGHTED:
+            Member fastest = candidates.get(0);
+            for (Member candidate : candidates) {
+                if (candidate.getWeightedLatency() < fastest.getWeightedLatency()) {
+                    fastest = candidate;
+                }
+            }
+            return fastest;
+        default:
+            return candidates.get((this.next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+        }
+    }
+
+    private static Builder checkMembers(Builder builder) {
+        // The base class asks the builder about the first member, so check before that.
+        if (builder == null) {
+            throw new IllegalArgumentException("Builder cannot be null!");
+        }
+        if (builder.getMembers().isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one member!");
+        }
+        if (builder.getMembers().contains(null)) {
+            throw new IllegalArgumentException("Members cannot contain null!");
+        }
+        return builder;
+    }
+
+    private Member getMember(SessionProvider provider) {
+        for (Member member : this.members) {
+            if (member.provider == provider) {
+                return member;
+            }
+        }
+        throw new IllegalArgumentException("Provider is not a member of this cluster!");
+    }
+
+    /**
+     * Health and load bookkeeping for one member.
+     */
+    private static final class Member {
+        private static final double LATENCY_WEIGHT = 0.2;
+        private final SessionProvider provider;
+        private final AtomicInteger inFlight;
+        private final AtomicInteger failures;
+        private final AtomicBoolean probing;
+        private volatile Session probeSession;
+        private volatile long downUntil;
+        private volatile double latencyNanos;
+
+        private Member(SessionProvider provider) {
+            this.provider = provider;
+            this.inFlight = new AtomicInteger();
+            this.failures = new AtomicInteger();
+            this.probing = new AtomicBoolean();
+            this.downUntil = 0;
+            this.latencyNanos = 0;
+        }
+
+        private boolean isHealthy() {
+            return this.downUntil == 0;
+        }
+
+        private double getWeightedLatency() {
+            return this.latencyNanos * (this.inFlight.get() + 1);
+        }
+
+        private void succeeded(long nanos) {
+            this.failures.set(0);
+            this.downUntil = 0;
+            double latency = this.latencyNanos;
+            this.latencyNanos = latency == 0 ? nanos : latency + LATENCY_WEIGHT * (nanos - latency);
+        }
+
+        private void failed(int maxFailures, long probeIntervalMillis) {
+            if (this.failures.incrementAndGet() >= maxFailures) {
+                this.downUntil = System.currentTimeMillis() + probeIntervalMillis;
+            }
+        }
+
+        private void probeLater(final long probeIntervalMillis) {
+            // One probe at a time, once the member's sat out long enough.
+            if (System.currentTimeMillis() < this.downUntil || !this.probing.compareAndSet(false, true)) {
+                return;
+            }
+
+            PROBES.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Member.this.probe(probeIntervalMillis);
+                    } finally {
+                        Member.this.probing.set(false);
+                    }
+                }
+            });
+        }
+
+        private void probe(long probeIntervalMillis) {
+            try {
+                Session session = this.getProbeSession();
+                String protocol = session.getProperty("mail.transport.protocol");
+                Transport transport = session.getTransport(protocol == null ? "smtp" : protocol);
+                transport.connect();
+                transport.close();
+                this.failures.set(0);
+                this.downUntil = 0;
+            } catch (MessagingException e) {
+                this.downUntil = System.currentTimeMillis() + probeIntervalMillis;
+            } catch (RuntimeException e) {
+                this.downUntil = System.currentTimeMillis() + probeIntervalMillis;
+            }
+        }
+
+        private Session getProbeSession() {
+            // The member's own settings, but a probe only needs the relay to answer, so it
+            // doesn't log in and doesn't wait long.
+            Session session = this.probeSession;
+            if (session == null) {
+                Session memberSession = this.provider.getSession();
+                String protocol = memberSession.getProperty("mail.transport.protocol");
+                String prefix = "mail." + (protocol == null ? "smtp" : protocol) + ".";
+
+                Properties props = new Properties();
+                props.putAll(memberSession.getProperties());
+                props.put(prefix + "auth", "false");
+                props.put(prefix + "connectiontimeout", Long.toString(PROBE_TIMEOUT_MILLIS));
+                props.put(prefix + "timeout", Long.toString(PROBE_TIMEOUT_MILLIS));
+                session = Session.getInstance(props);
+                this.probeSession = session;
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Builds cluster session providers.
+     */
+    public static class Builder implements SessionProviderBuilder {
+        private final List<SessionProvider> members;
+        private Strategy strategy;
+        private int maxFailures;
+        private long probeIntervalMillis;
+
+        /**
+         * Initializes a new instance of the Builder class.
+         */
+        public Builder() {
+            this.members = new ArrayList<SessionProvider>();
+            this.strategy = Strategy.ROUND_ROBIN;
+            this.maxFailures = DEFAULT_MAX_FAILURES;
+            this.probeIntervalMillis = DEFAULT_PROBE_INTERVAL_MILLIS;
+        }
+
+        /**
+         * Adds a member.
+         *
+         * @param provider
+         *            The member provider.
+         * @return The builder.
+         */
+        public Builder add(SessionProvider provider) {
+            if (provider == null) {
+                throw new IllegalArgumentException("Provider cannot be null!");
+            }
+            this.members.add(provider);
+            return this;
+        }
+
+        /**
+         * Sets how the cluster picks a member for each send.
+         *
+         * @param strategy
+         *            The strategy.
+         * @return The builder.
+         */
+        public Builder strategy(Strategy strategy) {
+            if (strategy == null) {
+                throw new IllegalArgumentException("Strategy cannot be null!");
+            }
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * Sets how many failures in a row take a member out of rotation.
+         *
+         * @param maxFailures
+         *            The failure count.
+         * @return The builder.
+         */
+        public Builder maxFailures(int maxFailures) {
+            if (maxFailures < 1) {
+                throw new IllegalArgumentException("Max failures must be at least one!");
+            }
+            this.maxFailures = maxFailures;
+            return this;
+        }
+
+        /**
+         * Sets how long a member sits out before it's probed.
+         *
+         * @param probeIntervalMillis
+         *            The interval in milliseconds.
+         * @return The builder.
+         */
+        public Builder probeIntervalMillis(long probeIntervalMillis) {
+            if (probeIntervalMillis < 0) {
+                throw new IllegalArgumentException("Probe interval cannot be negative!");
+            }
+            this.probeIntervalMillis = probeIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Gets the member providers.
+         *
+         * @return The members.
+         */
+        public List<SessionProvider> getMembers() {
+            return this.members;
+        }
+
+        /**
+         * Gets the strategy.
+         *
+         * @return The strategy.
+         */
+        public Strategy getStrategy() {
+            return this.strategy;
+        }
+
+        /**
+         * Gets how many failures in a row take a member out of rotation.
+         *
+         * @return The failure count.
+         */
+        public int getMaxFailures() {
+            return this.maxFailures;
+        }
+
+        /**
+         * Gets how long a member sits out before it's probed.
+         *
+         * @return The interval in milliseconds.
+         */
+        public long getProbeIntervalMillis() {
+            return this.probeIntervalMillis;
+        }
+
+        /**
+         * Gets the first member's host. See getHostAndPort on the provider for all of
+         * them.
+         *
+         * @return The first member's host.
+         */
+        @Override
+        public String getSmtpHost() {
+            return this.members.get(0).getSmtpHost();
+        }
+
+        @Override
+        public int getPort() {
+            return this.members.get(0).getPort();
+        }
+
+        /**
+         * Gets the total connections across every member.
+         *
+         * @return The total connection count.
+         */
+        @Override
+        public int getMaxConnections() {
+            int total = 0;
+            for (SessionProvider member : this.members) {
+                total += member.getMaxConnections();
+            }
+            return total;
+        }
+
+        @Override
+        public long getMaxIdleMillis() {
+            return this.members.get(0).getMaxIdleMillis();
+        }
+
+        /**
+         * Gets the lowest per-connection message cap of any member, so batches stay
+         * within every member's limit.
+         *
+         * @return The lowest message cap.
+         */
+        @Override
+        public int getMaxMessagesPerConnection() {
+            int min = Integer.MAX_VALUE;
+            for (SessionProvider member : this.members) {
+                min = Math.min(min, member.getMaxMessagesPerConnection());
+            }
+            return min;
+        }
+
+        @Override
+        public boolean isPipelining() {
+            return this.members.get(0).isPipelining();
+        }
+
+        /**
+         * Gets zero; every member applies its own rate limits.
+         *
+         * @return Zero.
+         */
+        @Override
+        public double getMessagesPerSecond() {
+            return 0;
+        }
+
+        /**
+         * Gets zero; every member applies its own rate limits.
+         *
+         * @return Zero.
+         */
+        @Override
+        public double getRecipientsPerSecond() {
+            return 0;
+        }
+
+        @Override
+        public boolean isAdaptiveThrottling() {
+            return false;
+        }
+
+        /**
+         * Creates the cluster.
+         *
+         * @return A cluster session provider.
+         */
+        public ClusterSessionProvider build() {
+            if (this.members.isEmpty()) {
+                throw new IllegalStateException("A cluster needs at least one member!");
+            }
+            return new ClusterSessionProvider(this);
+        }
+    }
+}
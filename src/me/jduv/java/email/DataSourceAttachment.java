@@ -0,0 +1,78 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * An attachment backed by a data source. The data source is shared by every part created
+ * from it, so it must be safe to read more than once.
+ */
+public final class DataSourceAttachment implements Attachment {
+    private final DataSource source;
+    private final String fileName;
+
+    /**
+     * Initializes a new instance of the DataSourceAttachment class.
+     * 
+     * @param source
+     *            The data source.
+     * @param fileName
+     *            The file name.
+     */
+    public DataSourceAttachment(DataSource source, String fileName) {
+        if (source == null) {
+            throw new IllegalArgumentException("Data source cannot be null!");
+        }
+
+        this.source = source;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Gets the data source.
+     * 
+     * @return The data source.
+     */
+    public DataSource getSource() {
+        return this.source;
+    }
+
+    @Override
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    @Override
+    public BodyPart createBodyPart() throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(this.source));
+        part.setFileName(this.fileName);
+        return part;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        MessageWriter.writeAttachmentHeaders(out, this.source.getContentType(), this.fileName);
+
+        InputStream in = this.source.getInputStream();
+        try {
+            OutputStream encoder = MimeUtility.encode(out, "base64");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                encoder.write(buffer, 0, read);
+            }
+            encoder.flush();
+        } finally {
+            in.close();
+        }
+    }
+}
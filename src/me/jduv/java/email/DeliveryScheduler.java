@@ -0,0 +1,596 @@
+package me.jduv.java.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Schedules sends by destination, so mail for one destination travels together and a slow
+ * destination never holds up a fast one.
+ *
+ * Each email is split by recipient domain, and domains that share a mail exchanger share a
+ * queue. Workers serve the queues round robin, taking a run of messages from one queue per
+ * turn so the connection they borrow keeps carrying mail for the same place. Each queue
+ * has its own concurrency limit, and a queue that hits a temporary failure backs off on its
+ * own, exponentially, while the others carry on.
+ *
+ * <pre>
+ * DeliveryScheduler scheduler = new DeliveryScheduler(provider, new JndiMxResolver());
+ * scheduler.start(8);
+ * CompletableFuture&lt;SendResult&gt; result = scheduler.submit(email);
+ * </pre>
+ *
+ * Every split of an email carries the same bytes, headers and all; only the envelope
+ * differs. An email's result is a success once every split has been accepted.
+ *
+ * Submitting never waits on DNS. MX answers come from a bounded CachingMxResolver; a
+ * domain with no live answer is grouped under its own name while a background thread
+ * looks it up, and later mail for it joins its exchanger's queue.
+ */
+public final class DeliveryScheduler implements Closeable {
+    public static final int DEFAULT_MAX_CONCURRENT_PER_DESTINATION = 2;
+    public static final int DEFAULT_MAX_MESSAGES_PER_TURN = 20;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000L;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 300000L;
+    private final SessionProvider sessionProvider;
+    private final CachingMxResolver resolver;
+    private final ExecutorService lookups;
+    private final int maxConcurrentPerDestination;
+    private final int maxMessagesPerTurn;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final ConcurrentMap<String, Boolean> resolving;
+    private final Map<String, Destination> queues;
+    private final ArrayDeque<Destination> ready;
+    private final List<Thread> workers;
+    private final ThreadLocal<MessageWriter> writers;
+    private int pendingCount;
+    private volatile boolean running;
+
+    /**
+     * Initializes a new instance of the DeliveryScheduler class with the default limits.
+     *
+     * @param sessionProvider
+     *            The provider to send through.
+     * @param resolver
+     *            Groups domains by mail exchanger, or null to group by domain alone. Put
+     *            behind a CachingMxResolver unless it already is one.
+     */
+    public DeliveryScheduler(SessionProvider sessionProvider, MxResolver resolver) {
+        this(sessionProvider, resolver, DEFAULT_MAX_CONCURRENT_PER_DESTINATION, DEFAULT_MAX_MESSAGES_PER_TURN,
+                DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * Initializes a new instance of the DeliveryScheduler class.
+     *
+     * @param sessionProvider
+     *            The provider to send through.
+     * @param resolver
+     *            Groups domains by mail exchanger, or null to group by domain alone. Put
+     *            behind a CachingMxResolver unless it already is one.
+     * @param maxConcurrentPerDestination
+     *            The most sends in flight to one destination at once.
+     * @param maxMessagesPerTurn
+     *            The most messages a worker sends to one destination before moving on to
+     *            the next.
+     * @param maxAttempts
+     *            How many times to try a message before giving up on it.
+     * @param initialBackoffMillis
+     *            How long a destination rests after its first temporary failure. Doubles
+     *            with each failure in a row.
+     * @param maxBackoffMillis
+     *            The longest a destination rests.
+     */
+    public DeliveryScheduler(SessionProvider sessionProvider, MxResolver resolver, int maxConcurrentPerDestination,
+            int maxMessagesPerTurn, int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (sessionProvider == null) {
+            throw new IllegalArgumentException("Session provider cannot be null!");
+        }
+        if (maxConcurrentPerDestination < 1) {
+            throw new IllegalArgumentException("Max concurrent per destination must be at least one!");
+        }
+        if (maxMessagesPerTurn < 1) {
+            throw new IllegalArgumentException("Max messages per turn must be at least one!");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least one!");
+        }
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Invalid backoff range!");
+        }
+
+        this.sessionProvider = sessionProvider;
+        if (resolver == null) {
+            this.resolver = null;
+            this.lookups = null;
+        }
+        else {
+            this.resolver = resolver instanceof CachingMxResolver ?
+                    (CachingMxResolver) resolver :
+                        new CachingMxResolver(resolver);
+            this.lookups = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "email-scheduler-mx");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.maxConcurrentPerDestination = maxConcurrentPerDestination;
+        this.maxMessagesPerTurn = maxMessagesPerTurn;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.resolving = new ConcurrentHashMap<String, Boolean>();
+        this.queues = new HashMap<String, Destination>();
+        this.ready = new ArrayDeque<Destination>();
+        this.workers = new ArrayList<Thread>();
+        this.writers = new ThreadLocal<MessageWriter>() {
+            @Override
+            protected MessageWriter initialValue() {
+                return new MessageWriter();
+            }
+        };
+        this.pendingCount = 0;
+        this.running = false;
+    }
+
+    /**
+     * Queues the target email. It's rendered once, on the calling thread, then split by
+     * destination. The returned future completes once every split has been delivered or
+     * given up on.
+     *
+     * @param email
+     *            The email. Must belong to this scheduler's session provider.
+     * @return A future holding the send result.
+     */
+    public CompletableFuture<SendResult> submit(Email email) {
+        if (email == null) {
+            throw new IllegalArgumentException("Email cannot be null!");
+        }
+        if (email.getSessionProvider() != this.sessionProvider) {
+            throw new IllegalArgumentException("Email does not belong to this scheduler's session provider!");
+        }
+
+        CompletableFuture<SendResult> future = new CompletableFuture<SendResult>();
+        ByteBuffer bytes;
+        try {
+            // Rendered into the thread's buffer, so keep a copy every split can share.
+            ByteBuffer rendered = this.writers.get().render(email);
+            bytes = ByteBuffer.wrap(Arrays.copyOfRange(rendered.array(), rendered.position(), rendered.limit()));
+        } catch (MessagingException e) {
+            future.complete(SendResult.failure(email, e));
+            return future;
+        }
+
+        // Split the envelope by destination, keeping the first-seen order.
+        Map<String, List<Address>> splits = new LinkedHashMap<String, List<Address>>();
+        this.addRecipients(email.getToAddresses(), splits);
+        this.addRecipients(email.getCcAddresses(), splits);
+        this.addRecipients(email.getBccAddresses(), splits);
+
+        Tracker tracker = new Tracker(email, future, splits.size());
+        synchronized (this.queues) {
+            for (Map.Entry<String, List<Address>> split : splits.entrySet()) {
+                Destination destination = this.queues.get(split.getKey());
+                if (destination == null) {
+                    destination = new Destination(split.getKey());
+                    this.queues.put(split.getKey(), destination);
+                }
+
+                List<Address> recipients = split.getValue();
+                destination.pending.add(new Split(tracker, recipients.toArray(new Address[recipients.size()]), bytes));
+                this.pendingCount++;
+                this.markReady(destination);
+            }
+            this.queues.notifyAll();
+        }
+        return future;
+    }
+
+    /**
+     * Starts the background workers.
+     *
+     * @param workerCount
+     *            The number of worker threads.
+     */
+    public synchronized void start(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least one!");
+        }
+        if (this.running) {
+            throw new IllegalStateException("Scheduler is already running!");
+        }
+
+        this.running = true;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    DeliveryScheduler.this.work();
+                }
+            }, "email-scheduler-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * Stops the background workers once their current turns are done. Queued messages
+     * stay queued and go out if the scheduler is started again.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        this.running = false;
+        synchronized (this.queues) {
+            this.queues.notifyAll();
+        }
+        for (Thread worker : this.workers) {
+            worker.join();
+        }
+        this.workers.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.lookups != null) {
+            this.lookups.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the number of splits waiting to go out, across every destination.
+     *
+     * @return The pending count.
+     */
+    public int getPendingCount() {
+        synchronized (this.queues) {
+            return this.pendingCount;
+        }
+    }
+
+    /**
+     * Gets the destination the target domain's mail is grouped under. Never blocks; if the
+     * domain's exchangers aren't cached, a lookup is started in the background.
+     *
+     * @param domain
+     *            The domain.
+     * @return The domain's most preferred mail exchanger, or the domain itself if it has
+     *         none, it isn't known yet, or there's no resolver.
+     */
+    public String getDestination(String domain) {
+        if (domain == null) {
+            throw new IllegalArgumentException("Domain cannot be null!");
+        }
+
+        String key = domain.toLowerCase(Locale.ENGLISH);
+        if (this.resolver == null || key.isEmpty()) {
+            return key;
+        }
+
+        List<String> hosts;
+        try {
+            hosts = this.resolver.peek(key);
+        } catch (UnknownHostException e) {
+            // Nowhere to deliver to; the provider reports it when the mail comes up.
+            return key;
+        }
+        if (hosts == null) {
+            this.resolveLater(key);
+            return key;
+        }
+        return hosts.isEmpty() ? key : hosts.get(0).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Checks to see if a destination is resting after temporary failures.
+     *
+     * @param destination
+     *            The destination, as returned by getDestination.
+     * @return True if the destination is backing off, false otherwise.
+     */
+    public boolean isBackingOff(String destination) {
+        synchronized (this.queues) {
+            Destination queue = this.queues.get(destination);
+            return queue != null && queue.backoffUntil > System.currentTimeMillis();
+        }
+    }
+
+    private void resolveLater(final String domain) {
+        if (this.resolving.putIfAbsent(domain, Boolean.TRUE) != null) {
+            return;
+        }
+
+        try {
+            this.lookups.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DeliveryScheduler.this.resolver.resolve(domain);
+                    } catch (IOException e) {
+                        // Only grouping depends on this; the provider does the real routing.
+                    } finally {
+                        DeliveryScheduler.this.resolving.remove(domain);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed; the domain just stays grouped under its own name.
+            this.resolving.remove(domain);
+        }
+    }
+
+    private void addRecipients(List<InternetAddress> addresses, Map<String, List<Address>> splits) {
+        for (int i = 0; i < addresses.size(); i++) {
+            InternetAddress address = addresses.get(i);
+            String mailbox = address.getAddress();
+            int at = mailbox.lastIndexOf('@');
+            String destination = this.getDestination(at < 0 ? "" : mailbox.substring(at + 1));
+
+            List<Address> recipients = splits.get(destination);
+            if (recipients == null) {
+                recipients = new ArrayList<Address>();
+                splits.put(destination, recipients);
+            }
+            if (!recipients.contains(address)) {
+                recipients.add(address);
+            }
+        }
+    }
+
+    private void work() {
+        while (this.running) {
+            Destination destination;
+            List<Split> turn = new ArrayList<Split>(this.maxMessagesPerTurn);
+            synchronized (this.queues) {
+                long wait;
+                while ((wait = this.take(turn)) != 0 && this.running) {
+                    try {
+                        this.queues.wait(Math.max(wait, 0));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (turn.isEmpty()) {
+                    return;
+                }
+                destination = this.queues.get(turn.get(0).destination);
+            }
+
+            this.deliver(destination, turn);
+        }
+    }
+
+    /**
+     * Takes the next turn's splits from the first destination, round robin, that can take
+     * one. Called with the queue lock held.
+     *
+     * @return Zero if the turn was filled, the milliseconds until a resting destination
+     *         wakes up if none could, or -1 if there's nothing to wait for.
+     */
+    private long take(List<Split> turn) {
+        long now = System.currentTimeMillis();
+        long wake = Long.MAX_VALUE;
+        for (int i = this.ready.size(); i > 0; i--) {
+            Destination destination = this.ready.poll();
+            if (destination.pending.isEmpty()) {
+                destination.ready = false;
+                continue;
+            }
+
+            // Back to the end of the line either way; that's the round robin.
+            if (destination.inFlight >= this.maxConcurrentPerDestination) {
+                this.ready.add(destination);
+                continue;
+            }
+            if (destination.backoffUntil > now) {
+                this.ready.add(destination);
+                wake = Math.min(wake, destination.backoffUntil - now);
+                continue;
+            }
+
+            while (turn.size() < this.maxMessagesPerTurn && !destination.pending.isEmpty()) {
+                Split split = destination.pending.poll();
+                split.destination = destination.name;
+                turn.add(split);
+            }
+            this.pendingCount -= turn.size();
+            destination.inFlight++;
+            if (destination.pending.isEmpty()) {
+                destination.ready = false;
+            }
+            else {
+                this.ready.add(destination);
+            }
+            return 0;
+        }
+        return wake == Long.MAX_VALUE ? -1 : wake;
+    }
+
+    private void deliver(Destination destination, List<Split> turn) {
+        List<Split> retry = new ArrayList<Split>();
+        boolean failedTemporarily = false;
+        int next = 0;
+
+        try {
+            for (; next < turn.size(); next++) {
+                Split split = turn.get(next);
+                if (failedTemporarily) {
+                    // The destination is struggling; put the rest back untried.
+                    retry.add(split);
+                    continue;
+                }
+
+                try {
+                    this.sessionProvider.send(split.createMessage(this.sessionProvider));
+                    split.tracker.complete(null);
+                } catch (MessagingException e) {
+                    split.attempts++;
+                    boolean partial = e instanceof SendFailedException
+                            && !isNullOrEmpty(((SendFailedException) e).getValidSentAddresses());
+                    if (partial || SmtpErrors.isPermanent(e) || split.attempts >= this.maxAttempts) {
+                        // Retrying a partly accepted split would deliver it twice.
+                        split.tracker.complete(e);
+                    }
+                    else {
+                        retry.add(split);
+                        failedTemporarily = true;
+                    }
+                } catch (RuntimeException e) {
+                    // A bug, not a bad day at the server; retrying won't help.
+                    split.tracker.complete(e);
+                }
+            }
+        } finally {
+            // Anything else that escaped leaves the rest of the turn to be tried again.
+            for (int i = next; i < turn.size(); i++) {
+                retry.add(turn.get(i));
+            }
+
+            synchronized (this.queues) {
+                destination.inFlight--;
+                if (failedTemporarily) {
+                    destination.failures++;
+                    int shift = Math.min(destination.failures - 1, 30);
+                    destination.backoffUntil = System.currentTimeMillis()
+                            + Math.min(this.initialBackoffMillis << shift, this.maxBackoffMillis);
+                }
+                else {
+                    destination.failures = 0;
+                    destination.backoffUntil = 0;
+                }
+
+                // Retries go back to the front, in their original order.
+                for (int i = retry.size() - 1; i >= 0; i--) {
+                    destination.pending.addFirst(retry.get(i));
+                }
+                this.pendingCount += retry.size();
+
+                if (destination.pending.isEmpty() && destination.inFlight == 0 && destination.failures == 0) {
+                    this.queues.remove(destination.name);
+                }
+                else {
+                    this.markReady(destination);
+                }
+                this.queues.notifyAll();
+            }
+        }
+    }
+
+    private void markReady(Destination destination) {
+        if (!destination.ready && !destination.pending.isEmpty()) {
+            destination.ready = true;
+            this.ready.add(destination);
+        }
+    }
+
+    private static boolean isNullOrEmpty(Address[] addresses) {
+        return addresses == null || addresses.length == 0;
+    }
+
+    /**
+     * One destination's queue and health. Guarded by the queue lock.
+     */
+    private static final class Destination {
+        private final String name;
+        private final ArrayDeque<Split> pending;
+        private int inFlight;
+        private int failures;
+        private long backoffUntil;
+        private boolean ready;
+
+        private Destination(String name) {
+            this.name = name;
+            this.pending = new ArrayDeque<Split>();
+        }
+    }
+
+    /**
+     * The part of an email bound for one destination.
+     */
+    private static final class Split {
+        private final Tracker tracker;
+        private final Address[] recipients;
+        private final ByteBuffer bytes;
+        private String destination;
+        private int attempts;
+
+        private Split(Tracker tracker, Address[] recipients, ByteBuffer bytes) {
+            this.tracker = tracker;
+            this.recipients = recipients;
+            this.bytes = bytes;
+        }
+
+        private SerializedMessage createMessage(SessionProvider sessionProvider) throws MessagingException {
+            return new SerializedMessage(
+                    sessionProvider.getSession(),
+                    this.tracker.email.getFromAddress(),
+                    this.recipients,
+                    this.bytes);
+        }
+    }
+
+    /**
+     * Completes an email's future once all of its splits are done.
+     */
+    private static final class Tracker {
+        private final Email email;
+        private final CompletableFuture<SendResult> future;
+        private final AtomicInteger remaining;
+        private volatile Exception failure;
+
+        private Tracker(Email email, CompletableFuture<SendResult> future, int splits) {
+            this.email = email;
+            this.future = future;
+            this.remaining = new AtomicInteger(splits);
+            if (splits == 0) {
+                future.complete(SendResult.success(email));
+            }
+        }
+
+        private void complete(Exception exception) {
+            if (exception != null && this.failure == null) {
+                this.failure = exception;
+            }
+            if (this.remaining.decrementAndGet() == 0) {
+                this.future.complete(this.failure == null ?
+                        SendResult.success(this.email) :
+                            SendResult.failure(this.email, this.failure));
+            }
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Delivers straight to each recipient domain's mail exchangers instead of through a relay.
+ * The exchangers are looked up through a resolver, cached by default, and tried in order of
+ * preference; a domain with no MX records gets its mail at the domain itself. An exchanger
+ * that can't be reached is tried last for the next thirty seconds. Every exchanger gets its
+ * own connection pool, so mail for domains that share exchangers shares connections too.
+ * An exchanger that goes unused for longer than the idle time, or thirty seconds if that's
+ * longer, is dropped along with its connections, as are the least recently used ones once
+ * there are more than the host limit.
+ *
+ * <pre>
+ * SessionProvider provider = new DirectSessionProvider.Builder().build();
+ * </pre>
+ *
+ * A message with recipients in several domains is sent once per domain. If some domains
+ * fail, the send throws a SendFailedException listing which recipients got it and which
+ * didn't.
+ *
+ * There's no single server to borrow connections from, so getTransportPool() and
+ * openTransport() aren't supported. Send through send(), Email.send(), an Outbox or a
+ * DeliveryScheduler instead. BatchSender, MailMerge and MessageSpool.deliver need a relay
+ * and reject this provider up front.
+ *
+ * getHostAndPort() names the placeholder "mx" host, not a real server. AsyncSender, and so
+ * Email.sendAsync(), queue and limit sends by that name, which would put all direct mail
+ * behind one shared limit; use a DeliveryScheduler, which queues by exchanger, instead.
+ */
+public class DirectSessionProvider extends SessionProvider {
+    public static final String DIRECT_HOST = "mx";
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+    public static final int DEFAULT_MAX_HOSTS = 1024;
+    private static final long HOST_DOWN_MILLIS = 30000L;
+    private final MxResolver resolver;
+    private final boolean startTls;
+    private final int maxHosts;
+    private final Map<String, HostProvider> hosts;
+
+    /**
+     * Initializes a new instance of the DirectSessionProvider class.
+     *
+     * @param builder
+     *            The builder.
+     */
+    public DirectSessionProvider(Builder builder) {
+        super(builder);
+        this.resolver = builder.getResolver();
+        this.startTls = builder.isStartTls();
+        this.maxHosts = builder.getMaxHosts();
+        // Access ordered, so the least recently used exchanger comes first.
+        this.hosts = new LinkedHashMap<String, HostProvider>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the resolver mail exchangers are looked up with.
+     *
+     * @return The resolver.
+     */
+    public MxResolver getResolver() {
+        return this.resolver;
+    }
+
+    /**
+     * Checks to see if STARTTLS is used whenever an exchanger offers it.
+     *
+     * @return True if STARTTLS is used, false otherwise.
+     */
+    public boolean isStartTls() {
+        return this.startTls;
+    }
+
+    /**
+     * Gets the most exchangers kept at once.
+     *
+     * @return The host limit.
+     */
+    public int getMaxHosts() {
+        return this.maxHosts;
+    }
+
+    /**
+     * Gets the provider for every exchanger currently kept, keyed by host name.
+     *
+     * @return An unmodifiable snapshot of the per-host providers.
+     */
+    public Map<String, SessionProvider> getHostProviders() {
+        synchronized (this.hosts) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, SessionProvider>(this.hosts));
+        }
+    }
+
+    /**
+     * Sends a message to each of its recipients' domains in turn.
+     *
+     * @param message
+     *            The message to send.
+     * @throws MessagingException
+     *             The domain's failure if there's only one domain, otherwise a
+     *             SendFailedException covering every recipient.
+     */
+    @Override
+    public void send(Message message) throws MessagingException {
+        Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        Map<String, List<Address>> domains = groupByDomain(recipients);
+        if (domains.size() == 1) {
+            Map.Entry<String, List<Address>> only = domains.entrySet().iterator().next();
+            this.send(message, only.getKey(), toArray(only.getValue()));
+            return;
+        }
+
+        List<Address> sent = new ArrayList<Address>();
+        List<Address> unsent = new ArrayList<Address>();
+        List<Address> invalid = new ArrayList<Address>();
+        MessagingException failure = null;
+        for (Map.Entry<String, List<Address>> domain : domains.entrySet()) {
+            try {
+                this.send(message, domain.getKey(), toArray(domain.getValue()));
+                sent.addAll(domain.getValue());
+            } catch (SendFailedException e) {
+                addAll(sent, e.getValidSentAddresses());
+                addAll(unsent, e.getValidUnsentAddresses());
+                addAll(invalid, e.getInvalidAddresses());
+                failure = failure == null ? e : failure;
+            } catch (MessagingException e) {
+                (SmtpErrors.isPermanent(e) ? invalid : unsent).addAll(domain.getValue());
+                failure = failure == null ? e : failure;
+            }
+        }
+
+        if (failure != null) {
+            throw new SendFailedException(
+                    "Delivery failed for some recipient domains.",
+                    failure,
+                    toArray(sent),
+                    toArray(unsent),
+                    toArray(invalid));
+        }
+    }
+
+    /**
+     * Not supported; there's no single server to pool connections to.
+     *
+     * @return Never.
+     */
+    @Override
+    public TransportPool getTransportPool() {
+        throw new UnsupportedOperationException("Direct delivery picks a server per recipient domain; use send()!");
+    }
+
+    /**
+     * Not supported; there's no single server to connect to.
+     *
+     * @return Never.
+     */
+    @Override
+    public Transport openTransport() throws MessagingException {
+        throw new UnsupportedOperationException("Direct delivery picks a server per recipient domain; use send()!");
+    }
+
+    /**
+     * Invalidates every per-host provider and forgets them.
+     */
+    @Override
+    public void invalidate() {
+        super.invalidate();
+        List<HostProvider> dropped;
+        synchronized (this.hosts) {
+            dropped = new ArrayList<HostProvider>(this.hosts.values());
+            this.hosts.clear();
+        }
+        for (HostProvider provider : dropped) {
+            provider.invalidate();
+        }
+    }
+
+    /**
+     * Messages only use their session for properties; the per-host providers have their
+     * own sessions for the actual sending.
+     *
+     * @return A session with no server in it.
+     */
+    @Override
+    protected Session createSession() {
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "false");
+        return Session.getInstance(props);
+    }
+
+    private void send(Message message, String domain, Address[] recipients) throws MessagingException {
+        List<String> exchangers;
+        if (domain.isEmpty()) {
+            throw new SendFailedException("Recipients have no domain to deliver to.", null, null, null, recipients);
+        }
+        else if (domain.startsWith("[") && domain.endsWith("]")) {
+            // An address literal names the server outright.
+            exchangers = Collections.singletonList(domain.substring(1, domain.length() - 1));
+        }
+        else {
+            try {
+                exchangers = this.resolver.resolve(domain);
+            } catch (UnknownHostException e) {
+                throw new SendFailedException("Domain " + domain + " does not exist or accepts no mail.", e, null, null,
+                        recipients);
+            } catch (IOException e) {
+                throw new MessagingException("Unable to look up mail exchangers for " + domain + ".", e);
+            }
+
+            // Resolvers other than JndiMxResolver may hand a null MX back as "." or "".
+            List<String> hosts = new ArrayList<String>(exchangers.size());
+            for (String exchanger : exchangers) {
+                if (exchanger != null && !exchanger.isEmpty() && !exchanger.equals(".")) {
+                    hosts.add(exchanger);
+                }
+            }
+            if (hosts.isEmpty() && !exchangers.isEmpty()) {
+                throw new SendFailedException("Domain " + domain + " accepts no mail.", null, null, null, recipients);
+            }
+            exchangers = hosts.isEmpty() ? Collections.singletonList(domain) : hosts;
+        }
+
+        // Exchangers that failed recently go to the back of the line, keeping their order.
+        List<HostProvider> candidates = new ArrayList<HostProvider>(exchangers.size());
+        List<HostProvider> down = new ArrayList<HostProvider>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < exchangers.size(); i++) {
+            HostProvider provider = this.getHostProvider(exchangers.get(i));
+            (provider.downUntil > now ? down : candidates).add(provider);
+        }
+        candidates.addAll(down);
+
+        // Try each exchanger in turn, unless one gives an answer another wouldn't change.
+        MessagingException failure = null;
+        for (HostProvider provider : candidates) {
+            try {
+                provider.getTransportPool().send(message, recipients);
+                provider.downUntil = 0;
+                return;
+            } catch (MessagingException e) {
+                // A server that answered, or took the message for some recipients, is up;
+                // sending to the next one would only deliver twice.
+                if (SmtpErrors.isPermanent(e) || SmtpErrors.isRecipientFailure(e)) {
+                    provider.downUntil = 0;
+                    throw e;
+                }
+                provider.downUntil = System.currentTimeMillis() + HOST_DOWN_MILLIS;
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private HostProvider getHostProvider(String host) {
+        String key = host.toLowerCase(Locale.ENGLISH);
+        long now = System.currentTimeMillis();
+        // Kept long enough to remember an exchanger being down, even with a short idle time.
+        long expiry = Math.max(this.getMaxIdleMillis(), HOST_DOWN_MILLIS);
+        List<HostProvider> dropped = new ArrayList<HostProvider>();
+        HostProvider provider;
+
+        synchronized (this.hosts) {
+            provider = this.hosts.get(key);
+            if (provider == null) {
+                SessionProvider.Builder builder = new SessionProvider.Builder(key, this.getPort())
+                        .maxConnections(this.getMaxConnections())
+                        .maxIdleMillis(this.getMaxIdleMillis())
+                        .maxMessagesPerConnection(this.getMaxMessagesPerConnection())
+                        .pipelining(this.isPipelining());
+                provider = new HostProvider(builder, this.startTls);
+                this.hosts.put(key, provider);
+            }
+            provider.lastUsed = now;
+
+            // Least recently used first, so stop at the first exchanger worth keeping.
+            Iterator<HostProvider> providers = this.hosts.values().iterator();
+            while (providers.hasNext()) {
+                HostProvider eldest = providers.next();
+                if (eldest == provider || (this.hosts.size() <= this.maxHosts && now - eldest.lastUsed <= expiry)) {
+                    break;
+                }
+                providers.remove();
+                dropped.add(eldest);
+            }
+        }
+
+        // Closing connections can block on the server, so it's done outside the lock.
+        for (HostProvider stale : dropped) {
+            stale.invalidate();
+        }
+        return provider;
+    }
+
+    private static Map<String, List<Address>> groupByDomain(Address[] recipients) {
+        Map<String, List<Address>> domains = new LinkedHashMap<String, List<Address>>();
+        for (Address recipient : recipients) {
+            String mailbox = recipient instanceof InternetAddress ?
+                    ((InternetAddress) recipient).getAddress() :
+                        recipient.toString();
+            int at = mailbox.lastIndexOf('@');
+            String domain = at < 0 ? "" : mailbox.substring(at + 1).toLowerCase(Locale.ENGLISH);
+
+            List<Address> addresses = domains.get(domain);
+            if (addresses == null) {
+                addresses = new ArrayList<Address>();
+                domains.put(domain, addresses);
+            }
+            addresses.add(recipient);
+        }
+        return domains;
+    }
+
+    private static void addAll(List<Address> target, Address[] addresses) {
+        if (addresses != null) {
+            Collections.addAll(target, addresses);
+        }
+    }
+
+    private static Address[] toArray(List<Address> addresses) {
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+
+    /**
+     * Sends to one mail exchanger, using STARTTLS whenever it's offered.
+     */
+    private static final class HostProvider extends SessionProvider {
+        private final boolean startTls;
+        private volatile long downUntil;
+        private volatile long lastUsed;
+
+        private HostProvider(SessionProviderBuilder builder, boolean startTls) {
+            super(builder);
+            this.startTls = startTls;
+        }
+
+        @Override
+        protected Session createSession() {
+            Properties props = new Properties();
+            props.put("mail.smtp.auth", "false");
+            props.put("mail.smtp.host", this.getSmtpHost());
+            props.put("mail.smtp.port", Integer.toString(this.getPort()));
+            props.put("mail.smtp.starttls.enable", Boolean.toString(this.startTls));
+
+            // Other people's servers can be slow or silent; don't hang on them forever.
+            props.put("mail.smtp.connectiontimeout", "30000");
+            props.put("mail.smtp.timeout", "60000");
+            return Session.getInstance(props);
+        }
+    }
+
+    /**
+     * Builds direct delivery providers.
+     */
+    public static class Builder implements SessionProviderBuilder {
+        private MxResolver resolver;
+        private int port;
+        private int maxConnections;
+        private int maxHosts;
+        private long maxIdleMillis;
+        private int maxMessagesPerConnection;
+        private boolean pipelining;
+        private boolean startTls;
+
+        /**
+         * Initializes a new instance of the Builder class, resolving through a cached
+         * JndiMxResolver and delivering on port 25.
+         */
+        public Builder() {
+            this.resolver = null;
+            this.port = DEFAULT_SMTP_PORT;
+            this.maxConnections = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+            this.maxHosts = DEFAULT_MAX_HOSTS;
+            this.maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+            this.maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+            this.pipelining = true;
+            this.startTls = true;
+        }
+
+        /**
+         * Sets the resolver to look up mail exchangers with. It's used as is; wrap it in a
+         * CachingMxResolver to cache it.
+         *
+         * @param resolver
+         *            The resolver.
+         * @return The builder.
+         */
+        public Builder resolver(MxResolver resolver) {
+            if (resolver == null) {
+                throw new IllegalArgumentException("Resolver cannot be null!");
+            }
+            this.resolver = resolver;
+            return this;
+        }
+
+        /**
+         * Sets the port to deliver on. Anything but 25 is only useful for testing.
+         *
+         * @param port
+         *            The port.
+         * @return The builder.
+         */
+        public Builder port(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port number! It's out of range.");
+            }
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of connections kept open to each exchanger.
+         *
+         * @param maxConnections
+         *            The connection limit.
+         * @return The builder.
+         */
+        public Builder maxConnections(int maxConnections) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Max connections must be at least one!");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Sets the most exchangers to keep providers and connections for. Past that, the
+         * least recently used ones are dropped.
+         *
+         * @param maxHosts
+         *            The host limit.
+         * @return The builder.
+         */
+        public Builder maxHosts(int maxHosts) {
+            if (maxHosts < 1) {
+                throw new IllegalArgumentException("Max hosts must be at least one!");
+            }
+            this.maxHosts = maxHosts;
+            return this;
+        }
+
+        /**
+         * Sets how long a pooled connection may sit idle before it's closed.
+         *
+         * @param maxIdleMillis
+         *            The idle time in milliseconds.
+         * @return The builder.
+         */
+        public Builder maxIdleMillis(long maxIdleMillis) {
+            if (maxIdleMillis < 0) {
+                throw new IllegalArgumentException("Max idle time cannot be negative!");
+            }
+            this.maxIdleMillis = maxIdleMillis;
+            return this;
+        }
+
+        /**
+         * Sets how many messages a pooled connection may carry before it's retired.
+         *
+         * @param maxMessagesPerConnection
+         *            The message limit.
+         * @return The builder.
+         */
+        public Builder maxMessagesPerConnection(int maxMessagesPerConnection) {
+            if (maxMessagesPerConnection < 1) {
+                throw new IllegalArgumentException("Max messages per connection must be at least one!");
+            }
+            this.maxMessagesPerConnection = maxMessagesPerConnection;
+            return this;
+        }
+
+        /**
+         * Turns SMTP command pipelining on or off, for exchangers that support it.
+         *
+         * @param pipelining
+         *            True to pipeline, false otherwise.
+         * @return The builder.
+         */
+        public Builder pipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        /**
+         * Turns opportunistic STARTTLS on or off. When on, it's used whenever an exchanger
+         * offers it, and skipped otherwise.
+         *
+         * @param startTls
+         *            True to use STARTTLS when offered, false otherwise.
+         * @return The builder.
+         */
+        public Builder startTls(boolean startTls) {
+            this.startTls = startTls;
+            return this;
+        }
+
+        /**
+         * Gets the resolver, creating the default one if none was set.
+         *
+         * @return The resolver.
+         */
+        public MxResolver getResolver() {
+            if (this.resolver == null) {
+                this.resolver = new CachingMxResolver(new JndiMxResolver());
+            }
+            return this.resolver;
+        }
+
+        /**
+         * Gets the most exchangers kept at once.
+         *
+         * @return The host limit.
+         */
+        public int getMaxHosts() {
+            return this.maxHosts;
+        }
+
+        /**
+         * Gets whether STARTTLS is used when offered.
+         *
+         * @return True if STARTTLS is used, false otherwise.
+         */
+        public boolean isStartTls() {
+            return this.startTls;
+        }
+
+        /**
+         * Gets a placeholder host; the real host is picked per recipient domain.
+         *
+         * @return The placeholder host.
+         */
+        @Override
+        public String getSmtpHost() {
+            return DIRECT_HOST;
+        }
+
+        @Override
+        public int getPort() {
+            return this.port;
+        }
+
+        /**
+         * Gets the connection limit for each exchanger.
+         *
+         * @return The per-host connection limit.
+         */
+        @Override
+        public int getMaxConnections() {
+            return this.maxConnections;
+        }
+
+        @Override
+        public long getMaxIdleMillis() {
+            return this.maxIdleMillis;
+        }
+
+        @Override
+        public int getMaxMessagesPerConnection() {
+            return this.maxMessagesPerConnection;
+        }
+
+        @Override
+        public boolean isPipelining() {
+            return this.pipelining;
+        }
+
+        /**
+         * Gets zero; direct delivery applies no rate limits of its own.
+         *
+         * @return Zero.
+         */
+        @Override
+        public double getMessagesPerSecond() {
+            return 0;
+        }
+
+        /**
+         * Gets zero; direct delivery applies no rate limits of its own.
+         *
+         * @return Zero.
+         */
+        @Override
+        public double getRecipientsPerSecond() {
+            return 0;
+        }
+
+        @Override
+        public boolean isAdaptiveThrottling() {
+            return false;
+        }
+
+        /**
+         * Creates the provider.
+         *
+         * @return A direct delivery provider.
+         */
+        public DirectSessionProvider build() {
+            return new DirectSessionProvider(this);
+        }
+    }
+}
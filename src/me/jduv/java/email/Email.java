@@ -1,14 +1,14 @@
 package me.jduv.java.email;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 
 import me.jduv.java.util.Collections;
@@ -26,6 +26,14 @@ public final class Email {
     private final EmailBody body;
     private final SessionProvider sessionProvider;
 
+    private static final EmailBody EMPTY_BODY = EmailBody.fromString(Strings.empty());
+    private static final ThreadLocal<MessageWriter> WRITERS = new ThreadLocal<MessageWriter>() {
+        @Override
+        protected MessageWriter initialValue() {
+            return new MessageWriter();
+        }
+    };
+
     /**
      * Initializes a new instance of the Email class.
      * 
@@ -33,15 +41,29 @@ public final class Email {
      *            The email builder to initialize with.
      */
     protected Email(Builder builder) {
+        this(
+                builder.sessionProvider,
+                builder.fromAddress,
+                freeze(builder.toAddresses),
+                freeze(builder.ccAddresses),
+                freeze(builder.bccAddresses),
+                builder.subject,
+                builder.body);
+    }
 
-        // Set fields.
-        this.fromAddress = builder.fromAddress;
-        this.toAddresses = builder.toAddresses;
-        this.ccAddresses = builder.ccAddresses;
-        this.bccAddresses = builder.bccAddresses;
-        this.subject = builder.subject;
-        this.body = builder.body;
-        this.sessionProvider = builder.sessionProvider;
+    /**
+     * Initializes a new instance of the Email class from parts that are already frozen.
+     * The lists must be unmodifiable; they're handed out as is.
+     */
+    Email(SessionProvider sessionProvider, InternetAddress fromAddress, List<InternetAddress> toAddresses,
+            List<InternetAddress> ccAddresses, List<InternetAddress> bccAddresses, String subject, EmailBody body) {
+        this.sessionProvider = sessionProvider;
+        this.fromAddress = fromAddress;
+        this.toAddresses = toAddresses;
+        this.ccAddresses = ccAddresses;
+        this.bccAddresses = bccAddresses;
+        this.subject = subject;
+        this.body = body;
     }
 
     /**
@@ -70,7 +92,7 @@ public final class Email {
      * @return An unmodifiable list of TO addresses.
      */
     public List<InternetAddress> getToAddresses() {
-        return java.util.Collections.unmodifiableList(this.toAddresses);
+        return this.toAddresses;
     }
 
     /**
@@ -79,7 +101,7 @@ public final class Email {
      * @return An unmodifiable list of CC addresses.
      */
     public List<InternetAddress> getCcAddresses() {
-        return java.util.Collections.unmodifiableList(this.ccAddresses);
+        return this.ccAddresses;
     }
 
     /**
@@ -88,7 +110,16 @@ public final class Email {
      * @return An unmodifiable list of BCC addresses.
      */
     public List<InternetAddress> getBccAddresses() {
-        return java.util.Collections.unmodifiableList(this.bccAddresses);
+        return this.bccAddresses;
+    }
+
+    /**
+     * Gets the number of TO, CC and BCC addresses together.
+     * 
+     * @return The recipient count.
+     */
+    public int getRecipientCount() {
+        return this.toAddresses.size() + this.ccAddresses.size() + this.bccAddresses.size();
     }
 
     /**
@@ -109,18 +140,62 @@ public final class Email {
         return this.body;
     }
 
+    /**
+     * Gets the session provider.
+     * 
+     * @return The session provider.
+     */
+    public SessionProvider getSessionProvider() {
+        return this.sessionProvider;
+    }
+
     /**
      * Sends the email.
      * 
      * @throws MessagingException
      */
     public void send() throws MessagingException {
+        // Serialize straight to bytes and away with it, over a pooled connection.
+        this.sessionProvider.send(WRITERS.get().serialize(this));
+    }
+
+    /**
+     * Sends the email on the shared default AsyncSender.
+     * 
+     * @return A future holding the send result.
+     */
+    public CompletableFuture<SendResult> sendAsync() {
+        return this.sendAsync(AsyncSender.getDefault());
+    }
+
+    /**
+     * Sends the email on the target AsyncSender.
+     * 
+     * @param sender
+     *            The sender.
+     * @return A future holding the send result.
+     */
+    public CompletableFuture<SendResult> sendAsync(AsyncSender sender) {
+        if (sender == null) {
+            throw new IllegalArgumentException("Sender cannot be null!");
+        }
+        return sender.send(this);
+    }
+
+    /**
+     * Creates the MIME message for this email, bound to the provider's session. Changes
+     * are not saved; the transport takes care of that.
+     * 
+     * @return The message.
+     * @throws MessagingException
+     */
+    public Message createMessage() throws MessagingException {
 
         Message message = new MimeMessage(this.sessionProvider.getSession());
         message.setSubject(this.getSubject());
         
-        // Create the MultiPart to put the Text inside.
-        Multipart multipart = createMultiPart();
+        // Assemble a fresh MIME tree from the body; the body itself is never modified.
+        Multipart multipart = this.getBody().createMultipart();
         message.setContent(multipart);
         
         // Set from address.
@@ -147,21 +222,24 @@ public final class Email {
                     this.getBccAddresses().toArray(new InternetAddress[this.getBccAddresses().size()]));
         }
 
-        // Away with it.
-        Transport.send(message);
+        return message;
     }
 
-	private Multipart createMultiPart() {
-		Multipart multipart = this.getBody().getMultipartMail();
-        try {
-			MimeBodyPart messageBodyPart = new MimeBodyPart();
-			messageBodyPart.setContent(this.getBody().getContent(), this.getBody().getType());
-			multipart.addBodyPart(messageBodyPart);
-		} catch (MessagingException e) {
-			throw new RuntimeException("ERROR ADDING BODY: " + this.getBody().getContent(), e);
-		}
-		return multipart;
-	}
+    /**
+     * Makes an unmodifiable copy of a builder's address list. The builder may be reused, so
+     * the list can't be shared, but the one-recipient case, by far the most common, gets
+     * away without copying a backing array.
+     */
+    private static List<InternetAddress> freeze(List<InternetAddress> addresses) {
+        if (addresses == null || addresses.isEmpty()) {
+            return java.util.Collections.emptyList();
+        }
+        if (addresses.size() == 1) {
+            return java.util.Collections.singletonList(addresses.get(0));
+        }
+        return java.util.Collections.unmodifiableList(Arrays.asList(
+                addresses.toArray(new InternetAddress[addresses.size()])));
+    }
 
     /**
      * Builds email objects. I opted for an interface and a default implementation here
@@ -189,12 +267,13 @@ public final class Email {
                 throw new IllegalArgumentException("Session provider cannot be null!");
             }
 
+            // Address lists are created on first use; most emails never touch CC or BCC.
             this.fromAddress = null;
-            this.toAddresses = new ArrayList<InternetAddress>();
-            this.ccAddresses = new ArrayList<InternetAddress>();
-            this.bccAddresses = new ArrayList<InternetAddress>();
+            this.toAddresses = null;
+            this.ccAddresses = null;
+            this.bccAddresses = null;
             this.subject = Strings.empty();
-            this.body = EmailBody.fromString(Strings.empty());
+            this.body = EMPTY_BODY;
             this.sessionProvider = sessionProvider;
         }
 
@@ -203,6 +282,9 @@ public final class Email {
             if (toAddress == null) {
                 throw new IllegalArgumentException("TO address cannot be null!");
             }
+            if (this.toAddresses == null) {
+                this.toAddresses = new ArrayList<InternetAddress>(4);
+            }
             this.toAddresses.add(toAddress);
             return this;
         }
@@ -221,6 +303,9 @@ public final class Email {
             if (ccAddress == null) {
                 throw new IllegalArgumentException("CC address cannot be null!");
             }
+            if (this.ccAddresses == null) {
+                this.ccAddresses = new ArrayList<InternetAddress>(4);
+            }
             this.ccAddresses.add(ccAddress);
             return this;
         }
@@ -230,6 +315,9 @@ public final class Email {
             if (bccAddress == null) {
                 throw new IllegalArgumentException("BCC address cannot be null!");
             }
+            if (this.bccAddresses == null) {
+                this.bccAddresses = new ArrayList<InternetAddress>(4);
+            }
             this.bccAddresses.add(bccAddress);
             return this;
         }
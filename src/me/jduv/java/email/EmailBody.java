@@ -3,13 +3,12 @@ package me.jduv.java.email;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javax.activation.DataHandler;
-import javax.activation.DataSource;
-import javax.activation.FileDataSource;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.internet.MimeBodyPart;
@@ -21,12 +20,14 @@ import org.stringtemplate.v4.ST;
 import me.jduv.java.util.Strings;
 
 /**
- * The body of an email.
+ * The body of an email. Immutable, so a single body can be shared by any number of emails
+ * and threads; the MIME parts are assembled fresh for every message.
  */
 public final class EmailBody {
-	private final Multipart multipartMail;
+    private final List<Attachment> attachments;
     private final String content;
     private final String type;
+    private final Character delimiter;
 
     /**
      * Initializes a new instance of the EmailBody class.
@@ -37,7 +38,9 @@ public final class EmailBody {
     protected EmailBody(Builder builder) {
         this.content = builder.content;
         this.type = builder.type;
-        this.multipartMail = builder.multipartMail;
+        this.delimiter = builder.delimiter;
+        this.attachments = java.util.Collections.unmodifiableList(
+                new ArrayList<Attachment>(builder.attachments));
     }
 
     /**
@@ -78,13 +81,68 @@ public final class EmailBody {
         return this.type;
     }
     
-    /**		
-     * Gets the MultipartMail.		
-     * 		
-     * @return The type.		
-     */		
-    public Multipart getMultipartMail() {		
-        return this.multipartMail;		
+    /**
+     * Gets the template delimiter.
+     * 
+     * @return The delimiter, or null if the StringTemplate default is used.
+     */
+    public Character getDelimiter() {
+        return this.delimiter;
+    }
+
+    /**
+     * Renders this body's content as a template against the target replacements. The
+     * result keeps this body's type, delimiter and attachments. This is what a mail merge
+     * does per recipient: build the template body once, then render it for everyone.
+     * 
+     * @param replacements
+     *            The replacements, keyed by tag.
+     * @return A new, rendered body.
+     */
+    public EmailBody render(Map<String, ?> replacements) {
+        if (replacements == null) {
+            throw new IllegalArgumentException("Replacements cannot be null!");
+        }
+
+        Builder builder = new Builder();
+        builder.content = this.content;
+        builder.type = this.type;
+        builder.delimiter = this.delimiter;
+        builder.replacements.putAll(replacements);
+        builder.attachments.addAll(this.attachments);
+        return builder.build();
+    }
+
+    /**
+     * Gets the attachments. Unmodifiable.
+     * 
+     * @return An unmodifiable list of attachments.
+     */
+    public List<Attachment> getAttachments() {
+        return this.attachments;
+    }
+
+    /**
+     * Assembles a new multipart holding the content followed by the attachments. Each call
+     * builds a fresh MIME tree, so nothing accumulates on the body between sends.
+     * 
+     * @return A new multipart.
+     * @throws MessagingException
+     */
+    public Multipart createMultipart() throws MessagingException {
+        long start = System.nanoTime();
+        Multipart multipart = new MimeMultipart();
+
+        MimeBodyPart contentPart = new MimeBodyPart();
+        contentPart.setContent(this.content, this.type);
+        multipart.addBodyPart(contentPart);
+
+        for (Attachment attachment : this.attachments) {
+            multipart.addBodyPart(attachment.createBodyPart());
+        }
+
+        EmailMetrics.getListener().onMessageAssembled(System.nanoTime() - start);
+        return multipart;
     }
 
     /**
@@ -95,7 +153,7 @@ public final class EmailBody {
         private String type;
         private Map<String, Object> replacements;
         private Character delimiter;
-        private Multipart multipartMail;
+        private List<Attachment> attachments;
 
         /**
          * Initializes a new instance of the Builder class.
@@ -103,7 +161,7 @@ public final class EmailBody {
         public Builder() {
             this.replacements = new HashMap<String, Object>();
             this.type = "text/html";
-            multipartMail = new MimeMultipart();
+            this.attachments = new ArrayList<Attachment>();
         }
 
         @Override
@@ -130,48 +188,49 @@ public final class EmailBody {
             return this;
         }
         
-        @Override		
-        public EmailBodyBuilder addFileAttachment(File file) {		
-        	try {		
-    			MimeBodyPart fileBodyPart = new MimeBodyPart();		
-    			DataSource source = new FileDataSource(file);		
-    			fileBodyPart.setDataHandler(new DataHandler(source));		
-    			fileBodyPart.setFileName(file.getName());		
-    			this.multipartMail.addBodyPart(fileBodyPart);		
-    		} catch (MessagingException e) {		
-    			throw new RuntimeException("ERROR ADDING FILE MAIL ATTACHMENT: " + file.getName(), e);		
-    		}		
-    		return this;		
-        }		
-        		
-        @Override		
-        public EmailBodyBuilder addFileAttachment(InputStream is, String fileName, String fileType) {		
-    		try {		
-    			MimeBodyPart fileBodyPart = new MimeBodyPart();		
-    			DataSource source = new ByteArrayDataSource(is, fileType);		
-    			fileBodyPart.setDataHandler(new DataHandler(source));		
-    			fileBodyPart.setFileName(fileName);		
-    			this.multipartMail.addBodyPart(fileBodyPart);		
-    		} catch (IOException ioe) {		
-    			throw new RuntimeException("ERROR ADDING FILE MAIL ATTACHMENT: " + fileName, ioe);		
-    		} catch (MessagingException e) {		
-    			throw new RuntimeException("ERROR ADDING FILE MAIL ATTACHMENT: " + fileName, e);		
-    		}		
-    		return this;		
-    	}
+        @Override
+        public EmailBodyBuilder addFileAttachment(File file) {
+            return this.addAttachment(new DataSourceAttachment(new MappedFileDataSource(file), file.getName()));
+        }
+
+        @Override
+        public EmailBodyBuilder addFileAttachment(InputStream is, String fileName, String fileType) {
+            try {
+                return this.addAttachment(new DataSourceAttachment(new ByteArrayDataSource(is, fileType), fileName));
+            } catch (IOException ioe) {
+                throw new RuntimeException("ERROR ADDING FILE MAIL ATTACHMENT: " + fileName, ioe);
+            }
+        }
+
+        @Override
+        public EmailBodyBuilder addAttachment(AttachmentSource source, String fileName, String fileType) {
+            return this.addAttachment(
+                    new DataSourceAttachment(new StreamingDataSource(source, fileName, fileType), fileName));
+        }
+
+        @Override
+        public EmailBodyBuilder addAttachment(Attachment attachment) {
+            if (attachment == null) {
+                throw new IllegalArgumentException("Attachment cannot be null!");
+            }
+            this.attachments.add(attachment);
+            return this;
+        }
 
         @Override
         public EmailBody build() {
             if (!Strings.isNullOrEmpty(this.content) && this.replacements.size() != 0) {
-                // Use StringTemplate for replacements.
-                ST template = this.delimiter == null ?
-                        new ST(this.content) :
-                            new ST(this.content, this.delimiter, this.delimiter);
+                long start = System.nanoTime();
+
+                // Use StringTemplate for replacements, parsing each template only once.
+                ST template = TemplateCache.getDefault().get(
+                        this.content, this.delimiter, this.replacements.keySet());
 
                 for (Entry<String, Object> entry : this.replacements.entrySet()) {
                     template.add(entry.getKey(), entry.getValue());
                 }
                 this.content = template.render();
+                EmailMetrics.getListener().onTemplateRendered(System.nanoTime() - start);
             }
 
             return new EmailBody(this);
@@ -50,19 +50,46 @@ public interface EmailBodyBuilder {
     public EmailBodyBuilder delimiter(char delimiter);
 
     /**
-     * Add a File Attachment to the Email.
+     * Add a File Attachment to the Email. The file is memory mapped and read straight
+     * from the mapping while the message is written.
      * 
      * @return A new EmailBody instance.
      */
 	public EmailBodyBuilder addFileAttachment(File file);
 
 	/**
-     * Add a File Attachment to the Email.
+     * Add a File Attachment to the Email. The whole stream is read into memory here; use
+     * addAttachment for large attachments.
      * 
      * @return A new EmailBody instance.
      */
 	public EmailBodyBuilder addFileAttachment(InputStream is, String fileName, String fileType);
     
+    /**
+     * Add an attachment whose bytes are only read while the message is being written. The
+     * source is opened once per send, so nothing is buffered in memory and the same body
+     * can be sent any number of times.
+     * 
+     * @param source
+     *            Opens the attachment's bytes.
+     * @param fileName
+     *            The file name.
+     * @param fileType
+     *            The MIME type.
+     * @return The builder.
+     */
+    public EmailBodyBuilder addAttachment(AttachmentSource source, String fileName, String fileType);
+
+    /**
+     * Add an attachment. Attachments are immutable descriptions, so the same one, an
+     * EncodedAttachment for example, can be added to any number of bodies.
+     * 
+     * @param attachment
+     *            The attachment.
+     * @return The builder.
+     */
+    public EmailBodyBuilder addAttachment(Attachment attachment);
+
     /**
      * Creates an EmailBody.
      * 
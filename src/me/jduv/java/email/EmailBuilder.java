@@ -18,6 +18,20 @@ public interface EmailBuilder {
      */
     public EmailBuilder to(InternetAddress toAddress);
 
+    /**
+     * Adds an address to the TO list. The address is parsed through the default AddressCache, so an address
+     * seen before costs a lookup instead of a parse.
+     * 
+     * @param toAddress
+     *            The address, optionally with a personal name.
+     * @return The builder.
+     * @throws IllegalArgumentException
+     *             If the address is invalid.
+     */
+    public default EmailBuilder to(String toAddress) {
+        return this.to(AddressCache.parseDefault(toAddress, "TO"));
+    }
+
     /**
      * Sets the from address.
      * 
@@ -27,6 +41,20 @@ public interface EmailBuilder {
      */
     public EmailBuilder from(InternetAddress fromAddress);
 
+    /**
+     * Sets the from address. The address is parsed through the default AddressCache, so an address
+     * seen before costs a lookup instead of a parse.
+     * 
+     * @param fromAddress
+     *            The address, optionally with a personal name.
+     * @return The builder.
+     * @throws IllegalArgumentException
+     *             If the address is invalid.
+     */
+    public default EmailBuilder from(String fromAddress) {
+        return this.from(AddressCache.parseDefault(fromAddress, "FROM"));
+    }
+
     /**
      * Adds an address to the CC list.
      * 
@@ -36,6 +64,20 @@ public interface EmailBuilder {
      */
     public EmailBuilder cc(InternetAddress ccAddress);
 
+    /**
+     * Adds an address to the CC list. The address is parsed through the default AddressCache, so an address
+     * seen before costs a lookup instead of a parse.
+     * 
+     * @param ccAddress
+     *            The address, optionally with a personal name.
+     * @return The builder.
+     * @throws IllegalArgumentException
+     *             If the address is invalid.
+     */
+    public default EmailBuilder cc(String ccAddress) {
+        return this.cc(AddressCache.parseDefault(ccAddress, "CC"));
+    }
+
     /**
      * Adds an address to the BCC list.
      * 
@@ -45,6 +87,20 @@ public interface EmailBuilder {
      */
     public EmailBuilder bcc(InternetAddress bccAddress);
 
+    /**
+     * Adds an address to the BCC list. The address is parsed through the default AddressCache, so an address
+     * seen before costs a lookup instead of a parse.
+     * 
+     * @param bccAddress
+     *            The address, optionally with a personal name.
+     * @return The builder.
+     * @throws IllegalArgumentException
+     *             If the address is invalid.
+     */
+    public default EmailBuilder bcc(String bccAddress) {
+        return this.bcc(AddressCache.parseDefault(bccAddress, "BCC"));
+    }
+
     /**
      * Sets the subject line of the email.
      * 
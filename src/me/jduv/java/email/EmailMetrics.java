@@ -0,0 +1,48 @@
+package me.jduv.java.email;
+
+/**
+ * Holds the metrics listener the send path reports to. Nothing is reported until a
+ * listener is set, and the default listener ignores every call.
+ */
+public final class EmailMetrics {
+    private static final MetricsListener NONE = new MetricsListener() {
+        @Override
+        public void onTemplateRendered(long nanos) {
+        }
+
+        @Override
+        public void onMessageAssembled(long nanos) {
+        }
+
+        @Override
+        public void onConnect(String host, long nanos, boolean succeeded) {
+        }
+
+        @Override
+        public void onSend(String host, long nanos, long bytes, boolean succeeded) {
+        }
+    };
+    private static volatile MetricsListener listener = NONE;
+
+    private EmailMetrics() {
+    }
+
+    /**
+     * Gets the current listener.
+     *
+     * @return The listener. Never null.
+     */
+    public static MetricsListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener the send path reports to.
+     *
+     * @param metricsListener
+     *            The listener, or null to stop reporting.
+     */
+    public static void setListener(MetricsListener metricsListener) {
+        listener = metricsListener == null ? NONE : metricsListener;
+    }
+}
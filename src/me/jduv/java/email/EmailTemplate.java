@@ -0,0 +1,194 @@
+package me.jduv.java.email;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import me.jduv.java.util.Strings;
+
+/**
+ * The parts of an email that stay the same from recipient to recipient, frozen once so
+ * each recipient only costs what's different about them. Building an email from a
+ * template allocates the email and a one-element TO list, nothing more; the sender,
+ * subject, body, CC and BCC lists are all shared.
+ *
+ * <pre>
+ * EmailTemplate template = new EmailTemplate(provider, from, "Your statement is ready", body);
+ * for (InternetAddress recipient : recipients) {
+ *     template.send(recipient);
+ * }
+ * </pre>
+ */
+public final class EmailTemplate {
+    private final SessionProvider sessionProvider;
+    private final InternetAddress fromAddress;
+    private final String subject;
+    private final EmailBody body;
+    private final List<InternetAddress> ccAddresses;
+    private final List<InternetAddress> bccAddresses;
+
+    /**
+     * Initializes a new instance of the EmailTemplate class.
+     *
+     * @param sessionProvider
+     *            The session provider.
+     * @param fromAddress
+     *            The from address.
+     * @param subject
+     *            The subject line. May be null.
+     * @param body
+     *            The body.
+     */
+    public EmailTemplate(SessionProvider sessionProvider, InternetAddress fromAddress, String subject,
+            EmailBody body) {
+        this(sessionProvider, fromAddress, subject, body,
+                Collections.<InternetAddress> emptyList(), Collections.<InternetAddress> emptyList());
+    }
+
+    private EmailTemplate(SessionProvider sessionProvider, InternetAddress fromAddress, String subject,
+            EmailBody body, List<InternetAddress> ccAddresses, List<InternetAddress> bccAddresses) {
+        if (sessionProvider == null) {
+            throw new IllegalArgumentException("Session provider cannot be null!");
+        }
+        if (fromAddress == null) {
+            throw new IllegalArgumentException("FROM address cannot be null!");
+        }
+        if (body == null) {
+            throw new IllegalArgumentException("Body cannot be null!");
+        }
+
+        this.sessionProvider = sessionProvider;
+        this.fromAddress = fromAddress;
+        this.subject = subject == null ? Strings.empty() : subject;
+        this.body = body;
+        this.ccAddresses = ccAddresses;
+        this.bccAddresses = bccAddresses;
+    }
+
+    /**
+     * Creates a template from everything in the target email but its TO addresses. Its CC
+     * and BCC addresses go on every email built from the template.
+     *
+     * @param prototype
+     *            The email to copy.
+     * @return The template.
+     */
+    public static EmailTemplate from(Email prototype) {
+        if (prototype == null) {
+            throw new IllegalArgumentException("Prototype cannot be null!");
+        }
+
+        // The email's lists are already unmodifiable, so they can be shared as is.
+        return new EmailTemplate(
+                prototype.getSessionProvider(),
+                prototype.getFromAddress(),
+                prototype.getSubject(),
+                prototype.getBody(),
+                prototype.getCcAddresses(),
+                prototype.getBccAddresses());
+    }
+
+    /**
+     * Gets the session provider.
+     *
+     * @return The session provider.
+     */
+    public SessionProvider getSessionProvider() {
+        return this.sessionProvider;
+    }
+
+    /**
+     * Gets the from address.
+     *
+     * @return The from address.
+     */
+    public InternetAddress getFromAddress() {
+        return this.fromAddress;
+    }
+
+    /**
+     * Gets the subject line.
+     *
+     * @return The subject line.
+     */
+    public String getSubject() {
+        return this.subject;
+    }
+
+    /**
+     * Gets the body.
+     *
+     * @return The body.
+     */
+    public EmailBody getBody() {
+        return this.body;
+    }
+
+    /**
+     * Gets the CC addresses every email gets. Unmodifiable.
+     *
+     * @return An unmodifiable list of CC addresses.
+     */
+    public List<InternetAddress> getCcAddresses() {
+        return this.ccAddresses;
+    }
+
+    /**
+     * Gets the BCC addresses every email gets. Unmodifiable.
+     *
+     * @return An unmodifiable list of BCC addresses.
+     */
+    public List<InternetAddress> getBccAddresses() {
+        return this.bccAddresses;
+    }
+
+    /**
+     * Builds the email for one recipient.
+     *
+     * @param toAddress
+     *            The recipient.
+     * @return The email.
+     */
+    public Email to(InternetAddress toAddress) {
+        return this.to(toAddress, null, null);
+    }
+
+    /**
+     * Builds the email for one recipient, overriding the subject, the body or both.
+     *
+     * @param toAddress
+     *            The recipient.
+     * @param subject
+     *            The recipient's subject line, or null for the template's.
+     * @param body
+     *            The recipient's body, or null for the template's.
+     * @return The email.
+     */
+    public Email to(InternetAddress toAddress, String subject, EmailBody body) {
+        if (toAddress == null) {
+            throw new IllegalArgumentException("TO address cannot be null!");
+        }
+
+        return new Email(
+                this.sessionProvider,
+                this.fromAddress,
+                Collections.singletonList(toAddress),
+                this.ccAddresses,
+                this.bccAddresses,
+                subject == null ? this.subject : subject,
+                body == null ? this.body : body);
+    }
+
+    /**
+     * Builds and sends the email for one recipient.
+     *
+     * @param toAddress
+     *            The recipient.
+     * @throws MessagingException
+     */
+    public void send(InternetAddress toAddress) throws MessagingException {
+        this.to(toAddress).send();
+    }
+}
@@ -0,0 +1,156 @@
+package me.jduv.java.email;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.FileTypeMap;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+
+/**
+ * A file attachment that's base64 encoded once, up front, into a temporary file. Every
+ * body it's attached to writes the already encoded bytes straight out, so sending the same
+ * attachment to thousands of recipients doesn't mean encoding it thousands of times.
+ * Call close() once no more messages will be sent with it to delete the temporary file.
+ */
+public final class EncodedAttachment implements Attachment {
+    private static final String ENCODING = "base64";
+    private final String fileName;
+    private final String contentType;
+    private final File encodedFile;
+    private final MappedFileDataSource encodedSource;
+
+    /**
+     * Initializes a new instance of the EncodedAttachment class, guessing the content type
+     * from the file name.
+     *
+     * @param file
+     *            The file to encode.
+     * @throws IOException
+     */
+    public EncodedAttachment(File file) throws IOException {
+        this(file, FileTypeMap.getDefaultFileTypeMap().getContentType(file));
+    }
+
+    /**
+     * Initializes a new instance of the EncodedAttachment class.
+     *
+     * @param file
+     *            The file to encode.
+     * @param contentType
+     *            The MIME type.
+     * @throws IOException
+     */
+    public EncodedAttachment(File file, String contentType) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null!");
+        }
+        if (contentType == null) {
+            throw new IllegalArgumentException("Content type cannot be null!");
+        }
+
+        this.fileName = file.getName();
+        this.contentType = contentType;
+        this.encodedFile = File.createTempFile("email-attachment", ".b64");
+        this.encodedFile.deleteOnExit();
+
+        try {
+            encode(file, this.encodedFile);
+        } catch (IOException e) {
+            this.encodedFile.delete();
+            throw e;
+        }
+        this.encodedSource = new MappedFileDataSource(this.encodedFile, contentType);
+    }
+
+    @Override
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /**
+     * Gets the MIME type.
+     *
+     * @return The content type.
+     */
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    /**
+     * Gets the size of the encoded attachment.
+     *
+     * @return The encoded size in bytes.
+     */
+    public long getEncodedSize() {
+        return this.encodedFile.length();
+    }
+
+    /**
+     * Creates a body part that writes the encoded bytes as they are.
+     *
+     * @return A new body part.
+     * @throws MessagingException
+     */
+    @Override
+    public BodyPart createBodyPart() throws MessagingException {
+        PreencodedMimeBodyPart part = new PreencodedMimeBodyPart(ENCODING);
+        part.setDataHandler(new DataHandler(this.encodedSource));
+        part.setFileName(this.fileName);
+        return part;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        MessageWriter.writeAttachmentHeaders(out, this.contentType, this.fileName);
+
+        // Already encoded, so this is a straight copy out of the mapping.
+        InputStream in = this.encodedSource.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the encoded temporary file.
+     */
+    public void close() {
+        this.encodedFile.delete();
+    }
+
+    private static void encode(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+            try {
+                OutputStream encoder = MimeUtility.encode(out, ENCODING);
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    encoder.write(buffer, 0, read);
+                }
+                encoder.flush();
+            } catch (MessagingException e) {
+                throw new IOException("Unable to base64 encode " + source.getName(), e);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package me.jduv.java.email;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock free histogram of non-negative values, like latencies in nanoseconds.
+ * Buckets are log-linear: each power of two is split into eight equal sub-buckets, so
+ * every recorded value lands in a bucket at most 12.5% wider than itself. Recording is a
+ * few bit operations and an atomic increment, and reading, bucket by bucket or by
+ * percentile, never allocates.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    /**
+     * Initializes a new instance of the Histogram class.
+     */
+    public Histogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value
+     *            The value.
+     */
+    public void record(long value) {
+        long v = value < 0 ? 0 : value;
+        this.counts.incrementAndGet(getBucket(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+
+        long current;
+        while (v > (current = this.max.get()) && !this.max.compareAndSet(current, v)) {
+            // Lost a race with another writer; try again.
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Gets the sum of every recorded value.
+     *
+     * @return The sum.
+     */
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The maximum, or zero if nothing's been recorded.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return The mean, or zero if nothing's been recorded.
+     */
+    public double getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : (double) this.sum.get() / n;
+    }
+
+    /**
+     * Gets an upper bound for the value at the target percentile.
+     *
+     * @param percentile
+     *            The percentile, from 0 to 100.
+     * @return The upper bound of the bucket holding that percentile, or zero if nothing's
+     *         been recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100!");
+        }
+
+        long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts.get(i);
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Gets the number of buckets, for exporters that walk them.
+     *
+     * @return The bucket count.
+     */
+    public int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * Gets the number of values recorded in the target bucket.
+     *
+     * @param bucket
+     *            The bucket index.
+     * @return The bucket's count.
+     */
+    public long getCount(int bucket) {
+        return this.counts.get(bucket);
+    }
+
+    /**
+     * Gets the largest value the target bucket holds.
+     *
+     * @param bucket
+     *            The bucket index.
+     * @return The bucket's inclusive upper bound.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        int exponent = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (exponent == 0) {
+            return sub;
+        }
+
+        // Bucket covers [2^(e+2) + sub * 2^(e-1), 2^(e+2) + (sub + 1) * 2^(e-1)).
+        int shift = exponent - 1;
+        long base = (long) SUB_BUCKETS << shift;
+        long upper = base + ((long) (sub + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+
+    /**
+     * Clears every recorded value. Values recorded while the reset runs may or may not
+     * survive it.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // The top bit picks the exponent; the next three bits pick the sub-bucket.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+}
@@ -0,0 +1,211 @@
+package me.jduv.java.email;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps send path metrics in memory: a latency histogram per stage, plus connection,
+ * transfer and byte counts per server. After the first send to a host, recording never
+ * allocates.
+ *
+ * <pre>
+ * InMemoryMetrics metrics = new InMemoryMetrics();
+ * EmailMetrics.setListener(metrics);
+ * ...
+ * long p99 = metrics.getHost("smtp.example.com:25").getTransferNanos().getPercentile(99);
+ * </pre>
+ */
+public final class InMemoryMetrics implements MetricsListener {
+    private final Histogram templateRenderNanos;
+    private final Histogram messageAssemblyNanos;
+    private final ConcurrentMap<String, HostMetrics> hosts;
+
+    /**
+     * Initializes a new instance of the InMemoryMetrics class.
+     */
+    public InMemoryMetrics() {
+        this.templateRenderNanos = new Histogram();
+        this.messageAssemblyNanos = new Histogram();
+        this.hosts = new ConcurrentHashMap<String, HostMetrics>();
+    }
+
+    /**
+     * Gets template render times.
+     *
+     * @return The histogram, in nanoseconds.
+     */
+    public Histogram getTemplateRenderNanos() {
+        return this.templateRenderNanos;
+    }
+
+    /**
+     * Gets message assembly times.
+     *
+     * @return The histogram, in nanoseconds.
+     */
+    public Histogram getMessageAssemblyNanos() {
+        return this.messageAssemblyNanos;
+    }
+
+    /**
+     * Gets the metrics for every server sent to so far, keyed by "host:port".
+     *
+     * @return An unmodifiable view of the per-server metrics.
+     */
+    public Map<String, HostMetrics> getHosts() {
+        return Collections.unmodifiableMap(this.hosts);
+    }
+
+    /**
+     * Gets the metrics for one server.
+     *
+     * @param host
+     *            The "host:port" of the server.
+     * @return The server's metrics, or null if nothing's been sent to it.
+     */
+    public HostMetrics getHost(String host) {
+        return this.hosts.get(host);
+    }
+
+    /**
+     * Clears everything recorded so far.
+     */
+    public void reset() {
+        this.templateRenderNanos.reset();
+        this.messageAssemblyNanos.reset();
+        this.hosts.clear();
+    }
+
+    @Override
+    public void onTemplateRendered(long nanos) {
+        this.templateRenderNanos.record(nanos);
+    }
+
+    @Override
+    public void onMessageAssembled(long nanos) {
+        this.messageAssemblyNanos.record(nanos);
+    }
+
+    @Override
+    public void onConnect(String host, long nanos, boolean succeeded) {
+        HostMetrics metrics = this.getOrCreateHost(host);
+        metrics.connectNanos.record(nanos);
+        (succeeded ? metrics.connects : metrics.connectFailures).incrementAndGet();
+    }
+
+    @Override
+    public void onSend(String host, long nanos, long bytes, boolean succeeded) {
+        HostMetrics metrics = this.getOrCreateHost(host);
+        metrics.transferNanos.record(nanos);
+        if (succeeded) {
+            metrics.sent.incrementAndGet();
+            if (bytes > 0) {
+                metrics.bytesSent.addAndGet(bytes);
+            }
+        }
+        else {
+            metrics.failed.incrementAndGet();
+        }
+    }
+
+    private HostMetrics getOrCreateHost(String host) {
+        HostMetrics metrics = this.hosts.get(host);
+        if (metrics == null) {
+            HostMetrics created = new HostMetrics();
+            metrics = this.hosts.putIfAbsent(host, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Connection and transfer metrics for one server.
+     */
+    public static final class HostMetrics {
+        private final Histogram connectNanos;
+        private final Histogram transferNanos;
+        private final AtomicLong connects;
+        private final AtomicLong connectFailures;
+        private final AtomicLong sent;
+        private final AtomicLong failed;
+        private final AtomicLong bytesSent;
+
+        private HostMetrics() {
+            this.connectNanos = new Histogram();
+            this.transferNanos = new Histogram();
+            this.connects = new AtomicLong();
+            this.connectFailures = new AtomicLong();
+            this.sent = new AtomicLong();
+            this.failed = new AtomicLong();
+            this.bytesSent = new AtomicLong();
+        }
+
+        /**
+         * Gets connect times, including any handshakes and authentication.
+         *
+         * @return The histogram, in nanoseconds.
+         */
+        public Histogram getConnectNanos() {
+            return this.connectNanos;
+        }
+
+        /**
+         * Gets message transfer times.
+         *
+         * @return The histogram, in nanoseconds.
+         */
+        public Histogram getTransferNanos() {
+            return this.transferNanos;
+        }
+
+        /**
+         * Gets the number of connections opened.
+         *
+         * @return The connection count.
+         */
+        public long getConnectCount() {
+            return this.connects.get();
+        }
+
+        /**
+         * Gets the number of connection attempts that failed.
+         *
+         * @return The failure count.
+         */
+        public long getConnectFailureCount() {
+            return this.connectFailures.get();
+        }
+
+        /**
+         * Gets the number of messages the server accepted.
+         *
+         * @return The sent count.
+         */
+        public long getSentCount() {
+            return this.sent.get();
+        }
+
+        /**
+         * Gets the number of messages that failed to send.
+         *
+         * @return The failure count.
+         */
+        public long getFailedCount() {
+            return this.failed.get();
+        }
+
+        /**
+         * Gets the total size of every accepted message whose size was known.
+         *
+         * @return The byte count.
+         */
+        public long getBytesSent() {
+            return this.bytesSent.get();
+        }
+    }
+}
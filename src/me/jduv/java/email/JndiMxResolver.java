@@ -0,0 +1,110 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Looks up MX records through the JDK's JNDI DNS provider, using the system's name
+ * servers unless told otherwise. Every call goes to DNS; nothing is cached here.
+ */
+public final class JndiMxResolver implements MxResolver {
+    private final Hashtable<String, String> environment;
+
+    /**
+     * Initializes a new instance of the JndiMxResolver class that asks the system's name
+     * servers.
+     */
+    public JndiMxResolver() {
+        this(null);
+    }
+
+    /**
+     * Initializes a new instance of the JndiMxResolver class.
+     * 
+     * @param nameServer
+     *            The name server to ask, like "dns://10.0.0.2", or null for the system's.
+     */
+    public JndiMxResolver(String nameServer) {
+        this.environment = new Hashtable<String, String>();
+        this.environment.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+        this.environment.put("java.naming.provider.url", nameServer == null ? "dns:" : nameServer);
+        this.environment.put("com.sun.jndi.dns.timeout.initial", "2000");
+        this.environment.put("com.sun.jndi.dns.timeout.retries", "2");
+    }
+
+    @Override
+    public List<String> resolve(String domain) throws IOException {
+        if (domain == null) {
+            throw new IllegalArgumentException("Domain cannot be null!");
+        }
+
+        DirContext context = null;
+        try {
+            context = new InitialDirContext(this.environment);
+            Attributes attributes = context.getAttributes(domain, new String[] { "MX" });
+            Attribute records = attributes.get("MX");
+            if (records == null) {
+                return new ArrayList<String>();
+            }
+
+            // Each record reads "<preference> <host>.".
+            List<String[]> exchangers = new ArrayList<String[]>();
+            NamingEnumeration<?> values = records.getAll();
+            while (values.hasMore()) {
+                String[] parts = values.next().toString().trim().split("\\s+");
+                if (parts.length == 2) {
+                    exchangers.add(parts);
+                }
+            }
+            String[][] sorted = exchangers.toArray(new String[exchangers.size()][]);
+            Arrays.sort(sorted, new Comparator<String[]>() {
+                @Override
+                public int compare(String[] left, String[] right) {
+                    return Integer.valueOf(left[0]).compareTo(Integer.valueOf(right[0]));
+                }
+            });
+
+            List<String> hosts = new ArrayList<String>(sorted.length);
+            for (String[] exchanger : sorted) {
+                String host = exchanger[1].toLowerCase(Locale.ENGLISH);
+                host = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+                // A null MX, "0 .", names no host; it says the domain takes no mail.
+                if (!host.isEmpty()) {
+                    hosts.add(host);
+                }
+            }
+            if (hosts.isEmpty() && sorted.length > 0) {
+                throw new UnknownHostException(domain + " publishes a null MX record and accepts no mail.");
+            }
+            return hosts;
+        } catch (NameNotFoundException e) {
+            throw new UnknownHostException(domain);
+        } catch (NamingException e) {
+            throw new IOException("Unable to look up MX records for " + domain + ".", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed MX record for " + domain + ".", e);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException e) {
+                    // Nothing to clean up that matters.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package me.jduv.java.email;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.stringtemplate.v4.ST;
+
+/**
+ * Sends one templated email to a stream of recipients. Each recipient is rendered, built
+ * and sent in turn, a batch at a time over a shared connection, so only one batch of
+ * emails is ever held in memory no matter how many recipients there are.
+ *
+ * Given a fork-join pool, a merge prepares batches in parallel instead: every recipient in
+ * a batch is rendered, built and serialized across the pool while the previous batch is
+ * being sent, so the CPU-bound work scales with cores and overlaps the network I/O. At most
+ * two batches are held in memory, and the listener still hears about every recipient in
+ * order, on the thread running the merge.
+ */
+public final class MailMerge {
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int PREPARE_THRESHOLD = 8;
+    private final BatchSender sender;
+    private final EmailTemplate template;
+    private final String subjectTemplate;
+    private final EmailBody bodyTemplate;
+    private final int batchSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * Initializes a new instance of the MailMerge class with the default batch size.
+     *
+     * @param sessionProvider
+     *            The session provider.
+     * @param fromAddress
+     *            The from address.
+     * @param subjectTemplate
+     *            The subject line, rendered with the body's delimiter.
+     * @param bodyTemplate
+     *            The body, built without replacements so its content is still a template.
+     */
+    public MailMerge(SessionProvider sessionProvider, InternetAddress fromAddress, String subjectTemplate,
+            EmailBody bodyTemplate) {
+        this(sessionProvider, fromAddress, subjectTemplate, bodyTemplate, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Initializes a new instance of the MailMerge class.
+     *
+     * @param sessionProvider
+     *            The session provider.
+     * @param fromAddress
+     *            The from address.
+     * @param subjectTemplate
+     *            The subject line, rendered with the body's delimiter.
+     * @param bodyTemplate
+     *            The body, built without replacements so its content is still a template.
+     * @param batchSize
+     *            How many recipients to render before handing them to the server.
+     */
+    public MailMerge(SessionProvider sessionProvider, InternetAddress fromAddress, String subjectTemplate,
+            EmailBody bodyTemplate, int batchSize) {
+        this(sessionProvider, fromAddress, subjectTemplate, bodyTemplate, batchSize, null);
+    }
+
+    /**
+     * Initializes a new instance of the MailMerge class that prepares batches in parallel.
+     * Pass ForkJoinPool.commonPool() to use every core.
+     *
+     * @param sessionProvider
+     *            The session provider.
+     * @param fromAddress
+     *            The from address.
+     * @param subjectTemplate
+     *            The subject line, rendered with the body's delimiter.
+     * @param bodyTemplate
+     *            The body, built without replacements so its content is still a template.
+     * @param batchSize
+     *            How many recipients to prepare at once. Larger batches spread better
+     *            across the pool.
+     * @param pool
+     *            The pool to render and serialize on, or null to do it all on the thread
+     *            running the merge.
+     */
+    public MailMerge(SessionProvider sessionProvider, InternetAddress fromAddress, String subjectTemplate,
+            EmailBody bodyTemplate, int batchSize, ForkJoinPool pool) {
+        if (sessionProvider instanceof DirectSessionProvider) {
+            throw new IllegalArgumentException("MailMerge needs a relay; direct delivery has no server to pool!");
+        }
+        if (fromAddress == null) {
+            throw new IllegalArgumentException("FROM address cannot be null!");
+        }
+        if (bodyTemplate == null) {
+            throw new IllegalArgumentException("Body cannot be null!");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least one!");
+        }
+
+        this.sender = new BatchSender(sessionProvider);
+        this.template = new EmailTemplate(sessionProvider, fromAddress, subjectTemplate, bodyTemplate);
+        this.subjectTemplate = subjectTemplate;
+        this.bodyTemplate = bodyTemplate;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Runs the merge over the target recipients.
+     *
+     * @param recipients
+     *            The recipients.
+     * @param listener
+     *            Receives each recipient's outcome. May be null.
+     * @return The totals.
+     */
+    public MergeReport run(Iterable<MergeRecipient> recipients, MergeListener listener) {
+        if (recipients == null) {
+            throw new IllegalArgumentException("Recipients cannot be null!");
+        }
+        return this.run(recipients.iterator(), listener);
+    }
+
+    /**
+     * Runs the merge over the target recipients.
+     *
+     * @param recipients
+     *            The recipients.
+     * @param listener
+     *            Receives each recipient's outcome. May be null.
+     * @return The totals.
+     */
+    public MergeReport run(Stream<MergeRecipient> recipients, MergeListener listener) {
+        if (recipients == null) {
+            throw new IllegalArgumentException("Recipients cannot be null!");
+        }
+        return this.run(recipients.iterator(), listener);
+    }
+
+    /**
+     * Runs the merge over the target recipients. The iterator is consumed lazily, one
+     * batch at a time.
+     *
+     * @param recipients
+     *            The recipients.
+     * @param listener
+     *            Receives each recipient's outcome. May be null.
+     * @return The totals.
+     */
+    public MergeReport run(Iterator<MergeRecipient> recipients, MergeListener listener) {
+        if (recipients == null) {
+            throw new IllegalArgumentException("Recipients cannot be null!");
+        }
+        if (this.pool != null) {
+            return this.runParallel(recipients, listener);
+        }
+
+        long start = System.currentTimeMillis();
+        long sent = 0;
+        long failed = 0;
+        List<MergeRecipient> batchRecipients = new ArrayList<MergeRecipient>(this.batchSize);
+        List<RuntimeException> batchFailures = new ArrayList<RuntimeException>(this.batchSize);
+        List<Email> batch = new ArrayList<Email>(this.batchSize);
+
+        while (recipients.hasNext()) {
+            MergeRecipient recipient = recipients.next();
+            RuntimeException failure = null;
+            try {
+                batch.add(this.createEmail(recipient));
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            // A recipient that couldn't be built keeps its place, so the listener still
+            // hears about everyone in order.
+            batchRecipients.add(recipient);
+            batchFailures.add(failure);
+
+            if (batchRecipients.size() >= this.batchSize || !recipients.hasNext()) {
+                Iterator<SendResult> results = this.sender.send(batch).iterator();
+                for (int i = 0; i < batchRecipients.size(); i++) {
+                    if (batchFailures.get(i) != null) {
+                        failed++;
+                        if (listener != null) {
+                            listener.onFailed(batchRecipients.get(i), batchFailures.get(i));
+                        }
+                        continue;
+                    }
+
+                    SendResult result = results.next();
+                    if (result.isSuccess()) {
+                        sent++;
+                        if (listener != null) {
+                            listener.onSent(batchRecipients.get(i), result.getEmail());
+                        }
+                    }
+                    else {
+                        failed++;
+                        if (listener != null) {
+                            listener.onFailed(batchRecipients.get(i), result.getException());
+                        }
+                    }
+                }
+                batch.clear();
+                batchRecipients.clear();
+                batchFailures.clear();
+            }
+        }
+
+        return new MergeReport(sent, failed, System.currentTimeMillis() - start);
+    }
+
+    private MergeReport runParallel(Iterator<MergeRecipient> recipients, MergeListener listener) {
+        long start = System.currentTimeMillis();
+        long[] totals = new long[2];
+
+        // Prepare the next batch while this one goes out.
+        PrepareTask current = this.prepare(recipients);
+        while (current != null) {
+            PrepareTask next = this.prepare(recipients);
+            current.join();
+            this.send(current, listener, totals);
+            current = next;
+        }
+
+        return new MergeReport(totals[0], totals[1], System.currentTimeMillis() - start);
+    }
+
+    private PrepareTask prepare(Iterator<MergeRecipient> recipients) {
+        List<MergeRecipient> batch = new ArrayList<MergeRecipient>(this.batchSize);
+        while (batch.size() < this.batchSize && recipients.hasNext()) {
+            batch.add(recipients.next());
+        }
+        if (batch.isEmpty()) {
+            return null;
+        }
+
+        PrepareTask task = new PrepareTask(batch.toArray(new MergeRecipient[batch.size()]));
+        this.pool.execute(task);
+        return task;
+    }
+
+    private void send(PrepareTask task, MergeListener listener, long[] totals) {
+        List<Email> emails = new ArrayList<Email>(task.recipients.length);
+        List<SerializedMessage> messages = new ArrayList<SerializedMessage>(task.recipients.length);
+        for (int i = 0; i < task.recipients.length; i++) {
+            if (task.failures[i] == null) {
+                emails.add(task.emails[i]);
+                messages.add(task.messages[i]);
+            }
+        }
+
+        // Results come back in batch order; interleave them with the preparation failures.
+        Iterator<SendResult> results = this.sender.send(emails, messages).iterator();
+        for (int i = 0; i < task.recipients.length; i++) {
+            if (task.failures[i] != null) {
+                totals[1]++;
+                if (listener != null) {
+                    listener.onFailed(task.recipients[i], task.failures[i]);
+                }
+                continue;
+            }
+
+            SendResult result = results.next();
+            if (result.isSuccess()) {
+                totals[0]++;
+                if (listener != null) {
+                    listener.onSent(task.recipients[i], result.getEmail());
+                }
+            }
+            else {
+                totals[1]++;
+                if (listener != null) {
+                    listener.onFailed(task.recipients[i], result.getException());
+                }
+            }
+        }
+    }
+
+    private Email createEmail(MergeRecipient recipient) {
+        return this.template.to(
+                recipient.getAddress(),
+                this.renderSubject(recipient),
+                this.bodyTemplate.render(recipient.getReplacements()));
+    }
+
+    private String renderSubject(MergeRecipient recipient) {
+        if (this.subjectTemplate == null || recipient.getReplacements().isEmpty()) {
+            return this.subjectTemplate;
+        }
+
+        ST template = TemplateCache.getDefault().get(
+                this.subjectTemplate,
+                this.bodyTemplate.getDelimiter(),
+                recipient.getReplacements().keySet());
+        for (Entry<String, Object> entry : recipient.getReplacements().entrySet()) {
+            template.add(entry.getKey(), entry.getValue());
+        }
+        return template.render();
+    }
+
+    /**
+     * Renders, builds and serializes one batch, splitting it in halves until the pieces
+     * are small enough to do in a single task. Each slot is written by exactly one task,
+     * and join() publishes them all to the sending thread.
+     */
+    private final class PrepareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final MergeRecipient[] recipients;
+        private final Email[] emails;
+        private final SerializedMessage[] messages;
+        private final Exception[] failures;
+        private final int from;
+        private final int to;
+
+        private PrepareTask(MergeRecipient[] recipients) {
+            this(recipients, new Email[recipients.length], new SerializedMessage[recipients.length],
+                    new Exception[recipients.length], 0, recipients.length);
+        }
+
+        private PrepareTask(MergeRecipient[] recipients, Email[] emails, SerializedMessage[] messages,
+                Exception[] failures, int from, int to) {
+            this.recipients = recipients;
+            this.emails = emails;
+            this.messages = messages;
+            this.failures = failures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > PREPARE_THRESHOLD) {
+                int middle = (this.from + this.to) >>> 1;
+                ForkJoinTask.invokeAll(
+                        new PrepareTask(this.recipients, this.emails, this.messages, this.failures, this.from, middle),
+                        new PrepareTask(this.recipients, this.emails, this.messages, this.failures, middle, this.to));
+                return;
+            }
+
+            MessageWriter writer = new MessageWriter();
+            for (int i = this.from; i < this.to; i++) {
+                try {
+                    Email email = MailMerge.this.createEmail(this.recipients[i]);
+
+                    // The writer reuses its buffer, so each message keeps its own copy.
+                    this.messages[i] = writer.serialize(email).copy();
+                    this.emails[i] = email;
+                } catch (RuntimeException e) {
+                    this.failures[i] = e;
+                } catch (MessagingException e) {
+                    this.failures[i] = e;
+                }
+            }
+        }
+    }
+}
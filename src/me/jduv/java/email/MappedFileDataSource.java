@@ -0,0 +1,205 @@
+package me.jduv.java.email;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+
+/**
+ * A data source that memory maps its file. The file is mapped the first time it's read,
+ * and every stream after that reads straight out of the mapping, so attaching the same
+ * file to many messages costs neither heap nor repeated read calls. If the file's size or
+ * modification time changes, the next stream maps it again. Files too big for one mapping
+ * (over 2GB) are streamed from disk instead.
+ *
+ * Java can't unmap a file on demand, so a mapping lives until the garbage collector finds
+ * it unreachable: once this data source has remapped or been released and every stream
+ * over the old mapping is done. Don't truncate a file while it's being sent; a read past
+ * the new end fails with an IOException.
+ */
+public final class MappedFileDataSource implements DataSource {
+    private final File file;
+    private final String contentType;
+    private volatile Mapping mapping;
+
+    /**
+     * Initializes a new instance of the MappedFileDataSource class, guessing the content
+     * type from the file name.
+     * 
+     * @param file
+     *            The file.
+     */
+    public MappedFileDataSource(File file) {
+        this(file, FileTypeMap.getDefaultFileTypeMap().getContentType(file));
+    }
+
+    /**
+     * Initializes a new instance of the MappedFileDataSource class.
+     * 
+     * @param file
+     *            The file.
+     * @param contentType
+     *            The MIME type.
+     */
+    public MappedFileDataSource(File file, String contentType) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null!");
+        }
+
+        this.file = file;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Gets the file.
+     * 
+     * @return The file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        long length = this.file.length();
+        if (length > Integer.MAX_VALUE) {
+            return new BufferedInputStream(new FileInputStream(this.file));
+        }
+
+        // Each stream gets its own position over the shared mapping.
+        return new ByteBufferInputStream(this.getMapping(length, this.file.lastModified()).duplicate());
+    }
+
+    /**
+     * Drops the current mapping so it can be unmapped once every stream over it is done.
+     * The next stream maps the file again.
+     */
+    public void release() {
+        this.mapping = null;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Mapped file data sources are read only.");
+    }
+
+    @Override
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    @Override
+    public String getName() {
+        return this.file.getName();
+    }
+
+    private MappedByteBuffer getMapping(long length, long lastModified) throws IOException {
+        Mapping mapping = this.mapping;
+        if (mapping == null || !mapping.matches(length, lastModified)) {
+            synchronized (this) {
+                mapping = this.mapping;
+                if (mapping == null || !mapping.matches(length, lastModified)) {
+                    RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+                    try {
+                        FileChannel channel = raf.getChannel();
+                        // Map what's there now; the file may have changed since length().
+                        long size = Math.min(channel.size(), Integer.MAX_VALUE);
+                        mapping = new Mapping(
+                                channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+                                length,
+                                lastModified);
+                    } finally {
+                        // The mapping stays valid after the channel is closed.
+                        raf.close();
+                    }
+                    this.mapping = mapping;
+                }
+            }
+        }
+        return mapping.buffer;
+    }
+
+    /**
+     * A mapping along with the file size and time it was taken at.
+     */
+    private static final class Mapping {
+        private final MappedByteBuffer buffer;
+        private final long length;
+        private final long lastModified;
+
+        private Mapping(MappedByteBuffer buffer, long length, long lastModified) {
+            this.buffer = buffer;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        private boolean matches(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * Reads a byte buffer as a stream.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+            } catch (InternalError e) {
+                throw truncated(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(length, this.buffer.remaining());
+            try {
+                this.buffer.get(bytes, offset, count);
+            } catch (InternalError e) {
+                throw truncated(e);
+            }
+            return count;
+        }
+
+        private static IOException truncated(InternalError e) {
+            // The JVM turns a fault on a mapped page past the end of the file into an
+            // InternalError.
+            return new IOException("Mapped file was truncated while being read.", e);
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package me.jduv.java.email;
+
+/**
+ * Receives per-recipient outcomes from a mail merge as they happen. Calls are made on the
+ * thread running the merge, in recipient order.
+ */
+public interface MergeListener {
+
+    /**
+     * Called when the server accepted the email for a recipient.
+     *
+     * @param recipient
+     *            The recipient.
+     * @param email
+     *            The email that was sent.
+     */
+    public void onSent(MergeRecipient recipient, Email email);
+
+    /**
+     * Called when a recipient's email could not be rendered, built or sent.
+     *
+     * @param recipient
+     *            The recipient.
+     * @param exception
+     *            What went wrong.
+     */
+    public void onFailed(MergeRecipient recipient, Exception exception);
+}
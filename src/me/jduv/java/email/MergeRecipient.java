@@ -0,0 +1,52 @@
+package me.jduv.java.email;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * A single recipient of a mail merge: who to send to and what to fill the templates with.
+ */
+public final class MergeRecipient {
+    private final InternetAddress address;
+    private final Map<String, Object> replacements;
+
+    /**
+     * Initializes a new instance of the MergeRecipient class.
+     *
+     * @param address
+     *            The TO address.
+     * @param replacements
+     *            The template replacements for this recipient, keyed by tag.
+     */
+    public MergeRecipient(InternetAddress address, Map<String, ?> replacements) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+        if (replacements == null) {
+            throw new IllegalArgumentException("Replacements cannot be null!");
+        }
+
+        this.address = address;
+        this.replacements = new HashMap<String, Object>(replacements);
+    }
+
+    /**
+     * Gets the TO address.
+     *
+     * @return The address.
+     */
+    public InternetAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Gets the template replacements. Unmodifiable.
+     *
+     * @return An unmodifiable map of replacements.
+     */
+    public Map<String, Object> getReplacements() {
+        return java.util.Collections.unmodifiableMap(this.replacements);
+    }
+}
@@ -0,0 +1,62 @@
+package me.jduv.java.email;
+
+/**
+ * Totals for a finished mail merge.
+ */
+public final class MergeReport {
+    private final long sentCount;
+    private final long failedCount;
+    private final long elapsedMillis;
+
+    /**
+     * Initializes a new instance of the MergeReport class.
+     *
+     * @param sentCount
+     *            The number of emails sent.
+     * @param failedCount
+     *            The number of recipients that failed.
+     * @param elapsedMillis
+     *            How long the merge ran.
+     */
+    protected MergeReport(long sentCount, long failedCount, long elapsedMillis) {
+        this.sentCount = sentCount;
+        this.failedCount = failedCount;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Gets the number of recipients processed.
+     *
+     * @return The processed count.
+     */
+    public long getProcessedCount() {
+        return this.sentCount + this.failedCount;
+    }
+
+    /**
+     * Gets the number of emails sent.
+     *
+     * @return The sent count.
+     */
+    public long getSentCount() {
+        return this.sentCount;
+    }
+
+    /**
+     * Gets the number of recipients that failed.
+     *
+     * @return The failed count.
+     */
+    public long getFailedCount() {
+        return this.failedCount;
+    }
+
+    /**
+     * Gets how long the merge ran.
+     *
+     * @return The elapsed time in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+}
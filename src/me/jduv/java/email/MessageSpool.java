@@ -0,0 +1,569 @@
+package me.jduv.java.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Splits bulk sending into a render stage and a delivery stage. Rendering turns each email
+ * into its final bytes once and appends them to a data file, along with a compact index
+ * record holding the envelope, offset and length. Any number of threads can render at
+ * once; only the append itself is serialized. Delivery reads the spooled bytes back and
+ * streams them to the server at whatever pace it allows, recording each delivered message
+ * in a third file, so after a crash neither rendered nor delivered work is repeated.
+ *
+ * A spool lives in its own directory as spool.dat, spool.idx and spool.done. Only pending
+ * entries are kept in memory. Once delivered messages make up most of the data file, the
+ * spool compacts itself: the pending messages are copied into fresh files, which then
+ * replace the old ones. Entries keep their sequence numbers across compactions.
+ */
+public final class MessageSpool implements Closeable {
+    private static final long COMPACTION_THRESHOLD_BYTES = 32L * 1024 * 1024;
+    private static final String DATA_FILE = "spool.dat";
+    private static final String INDEX_FILE = "spool.idx";
+    private static final String DONE_FILE = "spool.done";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String COMPACTING_MARKER = "spool.compacting";
+    private static final int HEAP_READ_LIMIT = 64 * 1024;
+    private final File directory;
+    private final Map<Integer, SpoolEntry> entries;
+    private final ThreadLocal<MessageWriter> writers;
+    private FileChannel data;
+    private FileChannel index;
+    private FileChannel done;
+    private MappedByteBuffer mapped;
+    private int nextSequence;
+    private long deliveredBytes;
+
+    /**
+     * Opens the spool in the target directory, creating it if needed and recovering any
+     * entries already in it.
+     *
+     * @param directory
+     *            The spool directory.
+     * @throws IOException
+     */
+    public MessageSpool(File directory) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null!");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+
+        this.directory = directory;
+        this.entries = new LinkedHashMap<Integer, SpoolEntry>();
+        this.writers = new ThreadLocal<MessageWriter>() {
+            @Override
+            protected MessageWriter initialValue() {
+                return new MessageWriter();
+            }
+        };
+
+        finishCompaction(directory);
+        this.open();
+        this.recover();
+    }
+
+    /**
+     * Renders the target email and appends it to the spool. Safe to call from many threads
+     * at once; the rendering runs in parallel.
+     *
+     * @param email
+     *            The email.
+     * @return The new entry.
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public SpoolEntry append(Email email) throws IOException, MessagingException {
+        ByteBuffer bytes = this.writers.get().render(email);
+
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>(email.getRecipientCount());
+        recipients.addAll(email.getToAddresses());
+        recipients.addAll(email.getCcAddresses());
+        recipients.addAll(email.getBccAddresses());
+
+        synchronized (this) {
+            long offset = this.data.size();
+            int length = bytes.remaining();
+            while (bytes.hasRemaining()) {
+                this.data.write(bytes, offset + length - bytes.remaining());
+            }
+
+            // The index record goes in only after its bytes, so a torn append leaves at
+            // worst some unreferenced data behind.
+            return this.addEntry(email.getFromAddress(), recipients, offset, length);
+        }
+    }
+
+    /**
+     * Replaces the target entry with a new one for the same message going to fewer
+     * recipients, for when the server took some recipients and put the rest off. The new
+     * entry shares the original's bytes, and the original is marked delivered.
+     *
+     * @param entry
+     *            The entry.
+     * @param recipients
+     *            The recipients still owed the message.
+     * @return The new entry.
+     * @throws IOException
+     */
+    public synchronized SpoolEntry requeue(SpoolEntry entry, Address[] recipients) throws IOException {
+        if (entry == null) {
+            throw new IllegalArgumentException("Entry cannot be null!");
+        }
+        if (recipients == null || recipients.length == 0) {
+            throw new IllegalArgumentException("Recipients cannot be null or empty!");
+        }
+
+        List<InternetAddress> remaining = new ArrayList<InternetAddress>(recipients.length);
+        for (Address recipient : recipients) {
+            remaining.add((InternetAddress) recipient);
+        }
+
+        // New entry first; a crash in between can only repeat a delivery, never lose one.
+        SpoolEntry current = this.resolve(entry);
+        SpoolEntry requeued = this.addEntry(current.getFromAddress(), remaining, current.getOffset(), current.getLength());
+        this.retire(current);
+        return requeued;
+    }
+
+    /**
+     * Forces everything appended so far out to the disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        this.data.force(false);
+        this.index.force(false);
+        this.done.force(false);
+    }
+
+    /**
+     * Gets the entries that haven't been delivered yet, in spool order.
+     *
+     * @return The pending entries.
+     */
+    public synchronized List<SpoolEntry> getPendingEntries() {
+        return new ArrayList<SpoolEntry>(this.entries.values());
+    }
+
+    /**
+     * Gets a pending entry by its sequence number.
+     *
+     * @param sequence
+     *            The sequence number.
+     * @return The entry, or null if it's been delivered.
+     */
+    public synchronized SpoolEntry getEntry(int sequence) {
+        return this.entries.get(sequence);
+    }
+
+    /**
+     * Checks to see if the target entry has been marked delivered.
+     *
+     * @param entry
+     *            The entry.
+     * @return True if it's been delivered, false otherwise.
+     */
+    public synchronized boolean isDelivered(SpoolEntry entry) {
+        return entry.getSequence() < this.nextSequence && !this.entries.containsKey(entry.getSequence());
+    }
+
+    /**
+     * Reads the target entry's bytes. Small messages are copied onto the heap; larger ones
+     * are sliced from a single mapping of the data file, which is only replaced once the
+     * file grows past it. Either way the buffer stays valid after a compaction moves the
+     * message.
+     *
+     * @param entry
+     *            The entry.
+     * @return A buffer over the message.
+     * @throws IOException
+     *             If the entry has been delivered, or the data file couldn't be read.
+     */
+    public synchronized ByteBuffer read(SpoolEntry entry) throws IOException {
+        SpoolEntry current = this.resolve(entry);
+        long end = current.getOffset() + current.getLength();
+
+        if (current.getLength() <= HEAP_READ_LIMIT) {
+            ByteBuffer bytes = ByteBuffer.allocate(current.getLength());
+            while (bytes.hasRemaining()) {
+                if (this.data.read(bytes, current.getOffset() + bytes.position()) < 0) {
+                    throw new EOFException("Spool entry " + current.getSequence() + " runs past the data file.");
+                }
+            }
+            bytes.flip();
+            return bytes;
+        }
+        if (end > Integer.MAX_VALUE) {
+            // Past what one buffer can address.
+            return this.data.map(FileChannel.MapMode.READ_ONLY, current.getOffset(), current.getLength());
+        }
+
+        if (this.mapped == null || this.mapped.capacity() < end) {
+            this.mapped = this.data.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(this.data.size(), Integer.MAX_VALUE));
+        }
+        ByteBuffer slice = this.mapped.duplicate();
+        slice.limit((int) end);
+        slice.position((int) current.getOffset());
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Records that the target entry no longer needs delivering, compacting the spool if
+     * delivered messages have come to fill most of it.
+     *
+     * @param entry
+     *            The entry.
+     * @throws IOException
+     */
+    public synchronized void markDelivered(SpoolEntry entry) throws IOException {
+        if (!this.entries.containsKey(entry.getSequence())) {
+            return;
+        }
+
+        this.retire(entry);
+        this.deliveredBytes += entry.getLength();
+        if (this.deliveredBytes >= COMPACTION_THRESHOLD_BYTES && this.deliveredBytes * 2 >= this.data.size()) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Rewrites the spool to hold only pending entries. The new files are written and
+     * synced alongside the old ones, and a marker file is left while they're renamed into
+     * place, so a crash at any point either keeps the old spool or finishes the switch on
+     * the next open. If this throws, the spool must be closed and reopened.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        File dataTemp = new File(this.directory, DATA_FILE + TEMP_SUFFIX);
+        File indexTemp = new File(this.directory, INDEX_FILE + TEMP_SUFFIX);
+        Map<Integer, SpoolEntry> moved = new LinkedHashMap<Integer, SpoolEntry>();
+
+        FileChannel newData = new RandomAccessFile(dataTemp, "rw").getChannel();
+        FileChannel newIndex = new RandomAccessFile(indexTemp, "rw").getChannel();
+        try {
+            newData.truncate(0);
+            newIndex.truncate(0);
+
+            // Requeued entries share their bytes, so each message is copied only once.
+            Map<Long, Long> offsets = new HashMap<Long, Long>();
+            for (SpoolEntry entry : this.entries.values()) {
+                Long offset = offsets.get(entry.getOffset());
+                if (offset == null) {
+                    offset = newData.size();
+                    long copied = 0;
+                    while (copied < entry.getLength()) {
+                        copied += this.data.transferTo(entry.getOffset() + copied, entry.getLength() - copied, newData);
+                    }
+                    offsets.put(entry.getOffset(), offset);
+                }
+
+                SpoolEntry copy = new SpoolEntry(
+                        entry.getSequence(),
+                        entry.getFromAddress(),
+                        entry.getRecipients(),
+                        offset,
+                        entry.getLength());
+                write(newIndex, encode(copy));
+                moved.put(copy.getSequence(), copy);
+            }
+            newData.force(true);
+            newIndex.force(true);
+        } finally {
+            newData.close();
+            newIndex.close();
+        }
+
+        File marker = new File(this.directory, COMPACTING_MARKER);
+        if (!marker.createNewFile()) {
+            throw new IOException("Unable to create compaction marker " + marker);
+        }
+        this.data.close();
+        this.index.close();
+        this.done.close();
+        finishCompaction(this.directory);
+        this.open();
+        this.mapped = null;
+
+        this.entries.clear();
+        this.entries.putAll(moved);
+        this.deliveredBytes = 0;
+    }
+
+    /**
+     * Delivers every pending entry over pooled connections from the target provider.
+     * Messages the server accepts, or permanently refuses, are marked delivered. If the
+     * server puts off some recipients with a 4xx, the entry is requeued for just those;
+     * if it puts off the whole message, the entry stays pending. A broken connection stops
+     * the run and leaves the rest pending for the next call.
+     *
+     * @param sessionProvider
+     *            The provider to deliver through. Must be a relay, not direct delivery.
+     * @return The number of messages the server accepted.
+     * @throws IOException
+     * @throws MessagingException
+     *             If the connection to the server failed.
+     */
+    public int deliver(SessionProvider sessionProvider) throws IOException, MessagingException {
+        if (sessionProvider == null) {
+            throw new IllegalArgumentException("Session provider cannot be null!");
+        }
+        if (sessionProvider instanceof DirectSessionProvider) {
+            throw new IllegalArgumentException("Spool delivery needs a relay; direct delivery has no server to pool!");
+        }
+
+        TransportPool pool = sessionProvider.getTransportPool();
+        TransportPool.Connection connection = null;
+        int accepted = 0;
+
+        try {
+            for (SpoolEntry entry : this.getPendingEntries()) {
+                SerializedMessage message = new SerializedMessage(
+                        sessionProvider.getSession(),
+                        entry.getFromAddress(),
+                        entry.getRecipients().toArray(new Address[entry.getRecipients().size()]),
+                        this.read(entry));
+                // Recipients the server refuses mustn't hold up the rest.
+                message.setSendPartial(true);
+
+                if (connection != null && connection.getMessageCount() >= sessionProvider.getMaxMessagesPerConnection()) {
+                    pool.release(connection);
+                    connection = null;
+                }
+                if (connection == null) {
+                    connection = pool.borrow();
+                }
+
+                try {
+                    connection.send(message, message.getAllRecipients());
+                    accepted++;
+                } catch (SendFailedException e) {
+                    Address[] retry = SmtpErrors.getRetryableRecipients(e);
+                    if (retry.length > 0) {
+                        if (retry.length < entry.getRecipients().size()) {
+                            this.requeue(entry, retry);
+                        }
+                        continue;
+                    }
+                    // Everyone was either sent to or refused for good.
+                } catch (MessagingException e) {
+                    pool.invalidate(connection);
+                    connection = null;
+                    throw e;
+                } catch (RuntimeException e) {
+                    // The connection may be stuck part way through a transaction.
+                    pool.invalidate(connection);
+                    connection = null;
+                    throw e;
+                }
+                this.markDelivered(entry);
+            }
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+        return accepted;
+    }
+
+    private SpoolEntry addEntry(InternetAddress from, List<InternetAddress> recipients, long offset, int length)
+            throws IOException {
+        SpoolEntry entry = new SpoolEntry(this.nextSequence, from, recipients, offset, length);
+        write(this.index, encode(entry));
+        this.nextSequence++;
+        this.entries.put(entry.getSequence(), entry);
+        return entry;
+    }
+
+    private void retire(SpoolEntry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(4);
+        record.putInt(entry.getSequence()).flip();
+        write(this.done, record.array());
+        this.entries.remove(entry.getSequence());
+    }
+
+    private SpoolEntry resolve(SpoolEntry entry) throws IOException {
+        // Compaction moves messages, so the caller's copy of the entry may be out of date.
+        SpoolEntry current = this.entries.get(entry.getSequence());
+        if (current == null) {
+            throw new IOException("Spool entry " + entry.getSequence() + " has already been delivered.");
+        }
+        return current;
+    }
+
+    private void open() throws IOException {
+        this.data = new RandomAccessFile(new File(this.directory, DATA_FILE), "rw").getChannel();
+        this.index = new RandomAccessFile(new File(this.directory, INDEX_FILE), "rw").getChannel();
+        this.done = new RandomAccessFile(new File(this.directory, DONE_FILE), "rw").getChannel();
+    }
+
+    private static void finishCompaction(File directory) throws IOException {
+        File dataTemp = new File(directory, DATA_FILE + TEMP_SUFFIX);
+        File indexTemp = new File(directory, INDEX_FILE + TEMP_SUFFIX);
+        File marker = new File(directory, COMPACTING_MARKER);
+
+        if (!marker.exists()) {
+            // A compaction that died before its files were complete; the old spool stands.
+            dataTemp.delete();
+            indexTemp.delete();
+            return;
+        }
+
+        // Roll forward. Each step can be repeated, so a crash part way through is fine.
+        if (dataTemp.exists()) {
+            Files.move(dataTemp.toPath(), new File(directory, DATA_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (indexTemp.exists()) {
+            Files.move(indexTemp.toPath(), new File(directory, INDEX_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        RandomAccessFile done = new RandomAccessFile(new File(directory, DONE_FILE), "rw");
+        try {
+            done.setLength(0);
+            done.getFD().sync();
+        } finally {
+            done.close();
+        }
+        if (!marker.delete()) {
+            throw new IOException("Unable to remove compaction marker " + marker);
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        long position = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.mapped = null;
+        this.data.close();
+        this.index.close();
+        this.done.close();
+    }
+
+    private void recover() throws IOException {
+        // Index records, each prefixed by its length. A record cut short by a crash ends
+        // the index; it's truncated away so new appends start clean.
+        long position = 0;
+        long size = this.index.size();
+        long dataSize = this.data.size();
+        ByteBuffer header = ByteBuffer.allocate(4);
+
+        while (position + 4 <= size) {
+            header.clear();
+            this.index.read(header, position);
+            header.flip();
+            int recordLength = header.getInt();
+            if (recordLength <= 0 || position + 4 + recordLength > size) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            while (record.hasRemaining()) {
+                this.index.read(record, position + 4 + record.position());
+            }
+
+            SpoolEntry entry;
+            try {
+                entry = decode(record.array());
+            } catch (EOFException e) {
+                break;
+            } catch (AddressException e) {
+                break;
+            }
+            if (entry.getOffset() + entry.getLength() > dataSize) {
+                break;
+            }
+            this.entries.put(entry.getSequence(), entry);
+            this.nextSequence = Math.max(this.nextSequence, entry.getSequence() + 1);
+            position += 4 + recordLength;
+        }
+        this.index.truncate(position);
+
+        ByteBuffer sequences = ByteBuffer.allocate((int) (this.done.size() / 4 * 4));
+        while (sequences.hasRemaining()) {
+            if (this.done.read(sequences, sequences.position()) < 0) {
+                break;
+            }
+        }
+        sequences.flip();
+        while (sequences.remaining() >= 4) {
+            this.entries.remove(sequences.getInt());
+        }
+
+        long pendingBytes = 0;
+        Set<Long> counted = new HashSet<Long>();
+        for (SpoolEntry entry : this.entries.values()) {
+            if (counted.add(entry.getOffset())) {
+                pendingBytes += entry.getLength();
+            }
+        }
+        this.deliveredBytes = Math.max(0, dataSize - pendingBytes);
+    }
+
+    private static byte[] encode(SpoolEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(entry.getOffset());
+        out.writeInt(entry.getLength());
+        out.writeUTF(entry.getFromAddress().getAddress());
+        out.writeInt(entry.getRecipients().size());
+        for (InternetAddress recipient : entry.getRecipients()) {
+            out.writeUTF(recipient.getAddress());
+        }
+        out.writeInt(entry.getSequence());
+        out.flush();
+
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(record.length - 4);
+        return record;
+    }
+
+    private static SpoolEntry decode(byte[] record) throws IOException, AddressException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long offset = in.readLong();
+        int length = in.readInt();
+        InternetAddress from = new InternetAddress(in.readUTF(), false);
+        int count = in.readInt();
+        List<InternetAddress> recipients = new ArrayList<InternetAddress>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(new InternetAddress(in.readUTF(), false));
+        }
+        int sequence = in.readInt();
+        return new SpoolEntry(sequence, from, recipients, offset, length);
+    }
+}
@@ -0,0 +1,404 @@
+package me.jduv.java.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharConversionException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+import me.jduv.java.util.Strings;
+
+/**
+ * Serializes an email straight to its RFC 5322 bytes. Building a MimeMessage means a
+ * MimeMultipart, a MimeBodyPart and a DataHandler per part, all of which javax.mail then
+ * walks and copies through several stream layers. This writer skips the object graph and
+ * writes headers, content and attachments in one pass, normalizing line endings (and
+ * dot-stuffing, if asked) as it goes.
+ *
+ * Messages serialized for sending only buffer their headers and text. Attachments are
+ * streamed from their sources when the transport writes the message out, so a large file
+ * never has to fit on the heap. Header text must be ASCII once encoded; an address with
+ * non-ASCII characters outside its display name is rejected rather than mangled.
+ *
+ * Writers keep a small reusable buffer and are not thread safe. Use one per thread.
+ */
+public final class MessageWriter {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final AtomicLong BOUNDARY_COUNT = new AtomicLong();
+    private final MailDateFormat dateFormat;
+    private Buffer buffer;
+
+    /**
+     * Initializes a new instance of the MessageWriter class.
+     */
+    public MessageWriter() {
+        this.dateFormat = new MailDateFormat();
+        this.buffer = new Buffer();
+    }
+
+    /**
+     * Serializes the target email's headers and text into this writer's buffer and wraps
+     * them in a message javax.mail can send. Attachments are read when the message is
+     * written out. The message shares the buffer, so it's only good until the next call
+     * to serialize or render on this writer.
+     *
+     * @param email
+     *            The email.
+     * @return A message holding the serialized bytes.
+     * @throws MessagingException
+     */
+    public SerializedMessage serialize(Email email) throws MessagingException {
+        return this.serialize(email, false, null);
+    }
+
+    /**
+     * Serializes the target email's headers and text like serialize(email), optionally
+     * hiding its recipient headers and sending it to a different envelope.
+     *
+     * @param email
+     *            The email.
+     * @param undisclosed
+     *            True to hide the recipient headers.
+     * @param envelope
+     *            The envelope recipients, or null for the email's own.
+     * @return A message holding the serialized bytes.
+     * @throws MessagingException
+     */
+    SerializedMessage serialize(Email email, boolean undisclosed, Address[] envelope) throws MessagingException {
+        if (email == null) {
+            throw new IllegalArgumentException("Email cannot be null!");
+        }
+
+        List<Attachment> attachments = email.getBody().getAttachments();
+        String boundary = createBoundary();
+        this.resetBuffer();
+
+        long start = System.nanoTime();
+        try {
+            SmtpDataOutputStream data = new SmtpDataOutputStream(this.buffer, false);
+            this.writeHead(email, data, undisclosed, boundary);
+            if (attachments.isEmpty()) {
+                writeBoundary(data, boundary, true);
+            }
+            data.flush();
+        } catch (IOException e) {
+            throw new MessagingException("Unable to serialize message.", e);
+        }
+        EmailMetrics.getListener().onMessageAssembled(System.nanoTime() - start);
+
+        return envelope == null ?
+                new SerializedMessage(
+                        email.getSessionProvider().getSession(),
+                        email,
+                        this.buffer.array(),
+                        this.buffer.size(),
+                        attachments,
+                        boundary) :
+                    new SerializedMessage(
+                            email.getSessionProvider().getSession(),
+                            email.getFromAddress(),
+                            envelope,
+                            ByteBuffer.wrap(this.buffer.array(), 0, this.buffer.size()),
+                            attachments,
+                            boundary);
+    }
+
+    /**
+     * Serializes the whole target email, attachments included, into this writer's buffer.
+     * Use it where the bytes outlive the send, like a spool. The result is not
+     * dot-stuffed, and it's a view over the buffer, so it's only good until the next call
+     * to serialize or render on this writer.
+     *
+     * @param email
+     *            The email.
+     * @return The serialized bytes.
+     * @throws MessagingException
+     */
+    public ByteBuffer render(Email email) throws MessagingException {
+        if (email == null) {
+            throw new IllegalArgumentException("Email cannot be null!");
+        }
+
+        this.resetBuffer();
+
+        long start = System.nanoTime();
+        try {
+            // The transport dot-stuffs DATA itself.
+            this.write(email, this.buffer, false);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to serialize message.", e);
+        }
+        EmailMetrics.getListener().onMessageAssembled(System.nanoTime() - start);
+        return ByteBuffer.wrap(this.buffer.array(), 0, this.buffer.size());
+    }
+
+    /**
+     * Writes the target email to a stream.
+     *
+     * @param email
+     *            The email.
+     * @param out
+     *            The target stream.
+     * @param dotStuff
+     *            True to dot-stuff the output for an SMTP DATA command.
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public void write(Email email, OutputStream out, boolean dotStuff) throws IOException, MessagingException {
+        SmtpDataOutputStream data = new SmtpDataOutputStream(out, dotStuff);
+        String boundary = createBoundary();
+        this.writeHead(email, data, false, boundary);
+        writeAttachments(data, email.getBody().getAttachments(), boundary);
+        data.flush();
+    }
+
+    /**
+     * Writes everything up to the first attachment: the message headers and the text
+     * part.
+     */
+    private void writeHead(Email email, SmtpDataOutputStream data, boolean undisclosed, String boundary)
+            throws IOException, MessagingException {
+        writeHeader(data, "Date", this.dateFormat.format(new Date()));
+        writeHeader(data, "From", encode(email.getFromAddress()).toString());
+        if (undisclosed) {
+            writeHeader(data, "To", "undisclosed-recipients:;");
+        }
+        else {
+            writeAddressHeader(data, "To", email.getToAddresses());
+            writeAddressHeader(data, "Cc", email.getCcAddresses());
+        }
+        writeHeader(data, "Message-ID", createMessageId(email.getFromAddress()));
+        if (!Strings.isNullOrEmpty(email.getSubject())) {
+            writeHeader(data, "Subject", MimeUtility.fold(9, MimeUtility.encodeText(email.getSubject(), "UTF-8", null)));
+        }
+        writeHeader(data, "MIME-Version", "1.0");
+        writeHeader(data, "Content-Type", "multipart/mixed; boundary=\"" + boundary + "\"");
+        data.write(CRLF);
+
+        // The content part.
+        EmailBody body = email.getBody();
+        writeBoundary(data, boundary, false);
+        writeHeader(data, "Content-Type", getTextContentType(body.getType()));
+        writeHeader(data, "Content-Transfer-Encoding", "quoted-printable");
+        data.write(CRLF);
+        if (body.getContent() != null) {
+            // Closing the encoder is what writes out a trailing space or tab; flushing leaves
+            // it pending. The shield keeps the close from reaching the message stream.
+            OutputStream encoder = MimeUtility.encode(new CloseShieldOutputStream(data), "quoted-printable");
+            encoder.write(body.getContent().getBytes(UTF_8));
+            encoder.close();
+        }
+        data.endLine();
+    }
+
+    /**
+     * Writes every attachment part and the closing boundary, picking up where writeHead
+     * left off.
+     *
+     * @param data
+     *            The target stream, at the start of a line.
+     * @param attachments
+     *            The attachments.
+     * @param boundary
+     *            The message's part boundary.
+     * @throws IOException
+     * @throws MessagingException
+     */
+    static void writeAttachments(SmtpDataOutputStream data, List<Attachment> attachments, String boundary)
+            throws IOException, MessagingException {
+        for (Attachment attachment : attachments) {
+            writeBoundary(data, boundary, false);
+            attachment.writeTo(data);
+            data.endLine();
+        }
+        writeBoundary(data, boundary, true);
+    }
+
+    /**
+     * Writes the headers that start an attachment part, up to and including the blank
+     * line. The part's content must follow as base64.
+     *
+     * @param out
+     *            The target stream.
+     * @param contentType
+     *            The attachment's MIME type.
+     * @param fileName
+     *            The attachment's file name. May be null.
+     * @throws IOException
+     */
+    static void writeAttachmentHeaders(OutputStream out, String contentType, String fileName) throws IOException {
+        ContentType type;
+        try {
+            type = new ContentType(contentType == null ? "application/octet-stream" : contentType);
+        } catch (ParseException e) {
+            type = new ContentType("application", "octet-stream", null);
+        }
+
+        ContentDisposition disposition = new ContentDisposition("attachment", null);
+        if (fileName != null) {
+            fileName = MimeUtility.encodeText(fileName, "UTF-8", null);
+            type.setParameter("name", fileName);
+            disposition.setParameter("filename", fileName);
+        }
+
+        // ContentType and ContentDisposition fold their own parameters.
+        writeHeader(out, "Content-Type", type.toString());
+        writeHeader(out, "Content-Transfer-Encoding", "base64");
+        writeHeader(out, "Content-Disposition", disposition.toString());
+        out.write(CRLF);
+    }
+
+    private static void writeHeader(OutputStream out, String name, String value) throws IOException {
+        if (!isAscii(value)) {
+            // Only display names and text get encoded words; there's no encoding for the
+            // address itself without SMTPUTF8.
+            throw new CharConversionException("The " + name + " header cannot contain non-ASCII characters: " + value);
+        }
+
+        out.write(name.getBytes(ASCII));
+        out.write(':');
+        out.write(' ');
+        out.write(value.getBytes(ASCII));
+        out.write(CRLF);
+    }
+
+    private static void writeAddressHeader(OutputStream out, String name, List<InternetAddress> addresses)
+            throws IOException {
+        if (addresses.size() == 1) {
+            // Nothing to fold between, so skip the array.
+            writeHeader(out, name, encode(addresses.get(0)).toString());
+        }
+        else if (!addresses.isEmpty()) {
+            InternetAddress[] encoded = new InternetAddress[addresses.size()];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = encode(addresses.get(i));
+            }
+            writeHeader(out, name, InternetAddress.toString(encoded, name.length() + 2));
+        }
+    }
+
+    /**
+     * Gets an address whose display name is safe to write as is. Parsed addresses keep
+     * their display name the way it was typed, so a non-ASCII one has to be turned into
+     * an encoded word first.
+     */
+    private static InternetAddress encode(InternetAddress address) {
+        String personal = address.getPersonal();
+        if (personal == null || isAscii(personal)) {
+            return address;
+        }
+        try {
+            return new InternetAddress(address.getAddress(), personal, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always there.
+            return address;
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBoundary(OutputStream out, String boundary, boolean last) throws IOException {
+        out.write('-');
+        out.write('-');
+        out.write(boundary.getBytes(ASCII));
+        if (last) {
+            out.write('-');
+            out.write('-');
+        }
+        out.write(CRLF);
+    }
+
+    private static String getTextContentType(String type) {
+        try {
+            ContentType contentType = new ContentType(type == null ? "text/plain" : type);
+            if ("text".equalsIgnoreCase(contentType.getPrimaryType()) && contentType.getParameter("charset") == null) {
+                contentType.setParameter("charset", "UTF-8");
+            }
+            return contentType.toString();
+        } catch (ParseException e) {
+            return "text/plain; charset=UTF-8";
+        }
+    }
+
+    private void resetBuffer() {
+        // Don't let one huge message pin a huge buffer to the thread forever.
+        if (this.buffer.capacity() > MAX_RETAINED_BUFFER) {
+            this.buffer = new Buffer();
+        }
+        this.buffer.reset();
+    }
+
+    private static String createBoundary() {
+        return "----=_Part_" + BOUNDARY_COUNT.incrementAndGet() + "_" + System.nanoTime();
+    }
+
+    private static String createMessageId(InternetAddress from) {
+        String address = from.getAddress();
+        int at = address == null ? -1 : address.lastIndexOf('@');
+        String domain = at < 0 ? "localhost" : address.substring(at + 1);
+        return "<" + UUID.randomUUID() + "@" + domain + ">";
+    }
+
+    /**
+     * Passes writes through but only flushes on close, so an encoder can be closed without
+     * closing the stream underneath it.
+     */
+    private static final class CloseShieldOutputStream extends FilterOutputStream {
+        private CloseShieldOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.flush();
+        }
+    }
+
+    /**
+     * A byte array stream that lends out its backing array instead of copying it.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(8192);
+        }
+
+        private byte[] array() {
+            return this.buf;
+        }
+
+        private int capacity() {
+            return this.buf.length;
+        }
+    }
+}
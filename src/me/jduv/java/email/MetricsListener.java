@@ -0,0 +1,55 @@
+package me.jduv.java.email;
+
+/**
+ * Receives timings and outcomes from the send path. Register one with
+ * EmailMetrics.setListener. Calls come from whichever thread is doing the work, often many
+ * at once, so implementations must be thread safe and should be cheap; they sit right on
+ * the hot path.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called when a body template has been rendered.
+     *
+     * @param nanos
+     *            How long the render took.
+     */
+    public void onTemplateRendered(long nanos);
+
+    /**
+     * Called when a message has been assembled, either serialized by a MessageWriter or
+     * built up as a MIME multipart.
+     *
+     * @param nanos
+     *            How long the assembly took.
+     */
+    public void onMessageAssembled(long nanos);
+
+    /**
+     * Called when a connection attempt finishes. The time covers the TCP connect, the
+     * greeting, EHLO, STARTTLS and AUTH, whichever of those the session uses.
+     *
+     * @param host
+     *            The "host:port" of the server.
+     * @param nanos
+     *            How long the attempt took.
+     * @param succeeded
+     *            True if the connection is open, false otherwise.
+     */
+    public void onConnect(String host, long nanos, boolean succeeded);
+
+    /**
+     * Called when a message transfer finishes, from MAIL FROM to the server's reply to
+     * the end of DATA.
+     *
+     * @param host
+     *            The "host:port" of the server.
+     * @param nanos
+     *            How long the transfer took.
+     * @param bytes
+     *            The size of the message, or -1 if it isn't known.
+     * @param succeeded
+     *            True if the server accepted the message, false otherwise.
+     */
+    public void onSend(String host, long nanos, long bytes, boolean succeeded);
+}
@@ -0,0 +1,26 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Looks up the mail exchangers for a domain. Implementations are expected to be thread
+ * safe. Swap in a stand-in, like testing.StaticMxResolver, to run without DNS.
+ */
+public interface MxResolver {
+
+    /**
+     * Gets the mail exchangers for the target domain.
+     * 
+     * @param domain
+     *            The domain, like "example.com".
+     * @return The exchangers' host names, most preferred first, without trailing dots. An
+     *         empty list if the domain has no MX records, in which case mail goes to the
+     *         domain itself.
+     * @throws IOException
+     *             If the lookup failed. An UnknownHostException if the domain doesn't
+     *             exist, or publishes only a null MX record (RFC 7505), meaning it takes
+     *             no mail at all.
+     */
+    public List<String> resolve(String domain) throws IOException;
+}
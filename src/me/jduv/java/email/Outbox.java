@@ -0,0 +1,467 @@
+package me.jduv.java.email;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+/**
+ * A durable, local outbox. Submitted emails are rendered into a MessageSpool and synced to
+ * disk before submit returns, then delivered by background workers. Temporary failures
+ * (4xx replies and broken connections) are retried with exponential backoff; permanent
+ * failures (5xx replies), and messages that run out of attempts, are marked dead. Every
+ * state change goes to a journal, so reopening the outbox after a crash picks up exactly
+ * where it left off. Each pending message's envelope and schedule are kept on the heap;
+ * the message bodies stay on disk. Once most of the journal describes messages that
+ * are long gone, it's rewritten down to the live records.
+ */
+public final class Outbox implements Closeable {
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 30000L;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 3600000L;
+    private static final byte STATE_RETRY = 1;
+    private static final byte STATE_DEAD = 2;
+    private static final int JOURNAL_RECORD_SIZE = 17;
+    private static final int JOURNAL_COMPACTION_RECORDS = 4096;
+    private static final String JOURNAL_FILE = "outbox.journal";
+    private static final long POLL_MILLIS = 500L;
+    private final SessionProvider sessionProvider;
+    private final MessageSpool spool;
+    private final File directory;
+    private final Object journalLock;
+    private final DelayQueue<Scheduled> schedule;
+    private final Map<Integer, Scheduled> retries;
+    private final Set<Integer> dead;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final List<Thread> workers;
+    private FileChannel journal;
+    private long journalRecords;
+    private volatile boolean running;
+
+    /**
+     * Opens the outbox in the target directory with the default retry policy.
+     *
+     * @param directory
+     *            The outbox directory.
+     * @param sessionProvider
+     *            The provider to deliver through.
+     * @throws IOException
+     */
+    public Outbox(File directory, SessionProvider sessionProvider) throws IOException {
+        this(directory, sessionProvider, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * Opens the outbox in the target directory, recovering anything left pending.
+     *
+     * @param directory
+     *            The outbox directory.
+     * @param sessionProvider
+     *            The provider to deliver through.
+     * @param maxAttempts
+     *            How many times to try a message before marking it dead.
+     * @param initialBackoffMillis
+     *            The wait before the first retry. Doubles with each attempt.
+     * @param maxBackoffMillis
+     *            The longest wait between retries.
+     * @throws IOException
+     */
+    public Outbox(File directory, SessionProvider sessionProvider, int maxAttempts, long initialBackoffMillis,
+            long maxBackoffMillis) throws IOException {
+        if (sessionProvider == null) {
+            throw new IllegalArgumentException("Session provider cannot be null!");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least one!");
+        }
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Invalid backoff range!");
+        }
+
+        this.sessionProvider = sessionProvider;
+        this.spool = new MessageSpool(directory);
+        this.directory = directory;
+        this.journalLock = new Object();
+        this.schedule = new DelayQueue<Scheduled>();
+        this.retries = new HashMap<Integer, Scheduled>();
+        this.dead = new LinkedHashSet<Integer>();
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.workers = new ArrayList<Thread>();
+        this.running = false;
+
+        // A leftover rewrite never replaced the journal, so the journal itself stands.
+        new File(directory, JOURNAL_FILE + ".tmp").delete();
+        this.journal = new RandomAccessFile(new File(directory, JOURNAL_FILE), "rw").getChannel();
+        this.recover();
+    }
+
+    /**
+     * Stores the target email durably and schedules it for delivery.
+     *
+     * @param email
+     *            The email.
+     * @throws IOException
+     * @throws MessagingException
+     *             If the email could not be rendered.
+     */
+    public void submit(Email email) throws IOException, MessagingException {
+        if (email == null) {
+            throw new IllegalArgumentException("Email cannot be null!");
+        }
+
+        SpoolEntry entry = this.spool.append(email);
+        this.spool.sync();
+        this.schedule.add(new Scheduled(entry.getSequence(), 0, System.currentTimeMillis()));
+    }
+
+    /**
+     * Starts the background workers.
+     *
+     * @param workerCount
+     *            The number of worker threads.
+     */
+    public synchronized void start(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least one!");
+        }
+        if (this.running) {
+            throw new IllegalStateException("Outbox is already running!");
+        }
+
+        this.running = true;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Outbox.this.work();
+                }
+            }, "email-outbox-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * Stops the background workers, waiting for any in-flight sends to finish. Pending
+     * messages stay in the outbox. The workers aren't interrupted, since an interrupt
+     * during file I/O closes the spool's channels.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        this.running = false;
+        for (Thread worker : this.workers) {
+            worker.join();
+        }
+        this.workers.clear();
+    }
+
+    /**
+     * Gets the number of messages waiting to be delivered or retried.
+     *
+     * @return The pending count.
+     */
+    public int getPendingCount() {
+        return this.schedule.size();
+    }
+
+    /**
+     * Gets the spool entries of every message marked dead.
+     *
+     * @return The dead entries.
+     */
+    public List<SpoolEntry> getDeadEntries() {
+        List<SpoolEntry> entries = new ArrayList<SpoolEntry>();
+        synchronized (this.dead) {
+            for (Integer sequence : this.dead) {
+                entries.add(this.spool.getEntry(sequence));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.journalLock) {
+            this.journal.close();
+        }
+        this.spool.close();
+    }
+
+    private void work() {
+        while (this.running) {
+            Scheduled next;
+            try {
+                // Bounded, so the worker notices a stop without being interrupted.
+                next = this.schedule.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == null) {
+                continue;
+            }
+
+            try {
+                this.attempt(next.sequence);
+            } catch (IOException e) {
+                // The journal is broken; put the message back rather than lose track of it.
+                this.schedule.add(new Scheduled(
+                        next.sequence,
+                        next.attempts,
+                        System.currentTimeMillis() + this.initialBackoffMillis));
+            }
+        }
+    }
+
+    private void attempt(int sequence) throws IOException {
+        SpoolEntry entry = this.spool.getEntry(sequence);
+        if (entry == null) {
+            return;
+        }
+
+        int previous;
+        synchronized (this.retries) {
+            Scheduled retry = this.retries.get(sequence);
+            previous = retry == null ? 0 : retry.attempts;
+        }
+
+        try {
+            SerializedMessage message = new SerializedMessage(
+                    this.sessionProvider.getSession(),
+                    entry.getFromAddress(),
+                    entry.getRecipients().toArray(new Address[entry.getRecipients().size()]),
+                    this.spool.read(entry));
+            // Recipients the server refuses mustn't hold up the rest.
+            message.setSendPartial(true);
+            this.sessionProvider.send(message);
+            this.delivered(entry);
+        } catch (SendFailedException e) {
+            Address[] retry = SmtpErrors.getRetryableRecipients(e);
+            Address[] sent = e.getValidSentAddresses();
+            if (retry.length > 0 && retry.length < entry.getRecipients().size()) {
+                // Only the recipients that were put off get another try; resending to
+                // the rest would deliver twice.
+                SpoolEntry requeued = this.spool.requeue(entry, retry);
+                this.spool.sync();
+                synchronized (this.retries) {
+                    this.retries.remove(sequence);
+                }
+                this.failed(requeued.getSequence(), previous + 1, false);
+            }
+            else if (retry.length == 0 && sent != null && sent.length > 0) {
+                // Everyone was either sent to or refused for good.
+                this.delivered(entry);
+            }
+            else {
+                this.failed(sequence, previous + 1, retry.length == 0 && SmtpErrors.isPermanent(e));
+            }
+        } catch (MessagingException e) {
+            this.failed(sequence, previous + 1, SmtpErrors.isPermanent(e));
+        }
+    }
+
+    private void delivered(SpoolEntry entry) throws IOException {
+        // The spool's done record is what recovery goes by, so it's the one to sync.
+        this.spool.markDelivered(entry);
+        this.spool.sync();
+        synchronized (this.retries) {
+            this.retries.remove(entry.getSequence());
+        }
+    }
+
+    private void failed(int sequence, int count, boolean permanent) throws IOException {
+        // The in-memory state changes before the journal does, so a journal rewrite in
+        // between never drops the change.
+        if (permanent || count >= this.maxAttempts) {
+            synchronized (this.retries) {
+                this.retries.remove(sequence);
+            }
+            synchronized (this.dead) {
+                this.dead.add(sequence);
+            }
+            this.journal(sequence, STATE_DEAD, count, 0);
+            return;
+        }
+
+        long backoff = this.initialBackoffMillis << Math.min(count - 1, 30);
+        if (backoff < 0 || backoff > this.maxBackoffMillis) {
+            backoff = this.maxBackoffMillis;
+        }
+        Scheduled next = new Scheduled(sequence, count, System.currentTimeMillis() + backoff);
+        synchronized (this.retries) {
+            this.retries.put(sequence, next);
+        }
+        this.journal(sequence, STATE_RETRY, count, next.due);
+        this.schedule.add(next);
+    }
+
+    private void journal(int sequence, byte state, int attemptCount, long due) throws IOException {
+        synchronized (this.journalLock) {
+            append(this.journal, sequence, state, attemptCount, due);
+            this.journal.force(false);
+            this.journalRecords++;
+
+            if (this.journalRecords >= JOURNAL_COMPACTION_RECORDS) {
+                int live;
+                synchronized (this.retries) {
+                    synchronized (this.dead) {
+                        live = this.retries.size() + this.dead.size();
+                    }
+                }
+                if (this.journalRecords > 4L * live) {
+                    this.compactJournal();
+                }
+            }
+        }
+    }
+
+    private void compactJournal() throws IOException {
+        // Write the live records to a new journal, sync it, then rename it over the old
+        // one. The rename is atomic, so a crash leaves one journal or the other.
+        File temp = new File(this.directory, JOURNAL_FILE + ".tmp");
+        FileChannel compacted = new RandomAccessFile(temp, "rw").getChannel();
+        long records = 0;
+        try {
+            compacted.truncate(0);
+            synchronized (this.retries) {
+                for (Scheduled retry : this.retries.values()) {
+                    append(compacted, retry.sequence, STATE_RETRY, retry.attempts, retry.due);
+                    records++;
+                }
+            }
+            synchronized (this.dead) {
+                for (Integer sequence : this.dead) {
+                    append(compacted, sequence, STATE_DEAD, 0, 0);
+                    records++;
+                }
+            }
+            compacted.force(true);
+        } finally {
+            compacted.close();
+        }
+
+        this.journal.close();
+        File target = new File(this.directory, JOURNAL_FILE);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.journal = new RandomAccessFile(target, "rw").getChannel();
+        this.journalRecords = records;
+    }
+
+    private static void append(FileChannel channel, int sequence, byte state, int attemptCount, long due)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(JOURNAL_RECORD_SIZE);
+        record.putInt(sequence).put(state).putInt(attemptCount).putLong(due).flip();
+        long position = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+    }
+
+    private void recover() throws IOException {
+        // Replay the journal; the last record for a message wins. A torn final record is
+        // ignored and cut off.
+        Map<Integer, Scheduled> due = new HashMap<Integer, Scheduled>();
+        long size = this.journal.size() / JOURNAL_RECORD_SIZE * JOURNAL_RECORD_SIZE;
+        ByteBuffer records = ByteBuffer.allocate(64 * JOURNAL_RECORD_SIZE);
+        long position = 0;
+
+        while (position < size) {
+            records.clear();
+            if (size - position < records.capacity()) {
+                records.limit((int) (size - position));
+            }
+            while (records.hasRemaining()) {
+                this.journal.read(records, position + records.position());
+            }
+            position += records.limit();
+            records.flip();
+
+            while (records.remaining() >= JOURNAL_RECORD_SIZE) {
+                int sequence = records.getInt();
+                byte state = records.get();
+                int attemptCount = records.getInt();
+                long when = records.getLong();
+
+                if (state == STATE_RETRY) {
+                    due.put(sequence, new Scheduled(sequence, attemptCount, when));
+                }
+                else {
+                    due.remove(sequence);
+                    if (state == STATE_DEAD) {
+                        this.dead.add(sequence);
+                    }
+                }
+            }
+        }
+        this.journal.truncate(size);
+        this.journalRecords = size / JOURNAL_RECORD_SIZE;
+
+        // Retries for entries the spool has since dropped, like requeued ones, are stale.
+        long now = System.currentTimeMillis();
+        for (SpoolEntry entry : this.spool.getPendingEntries()) {
+            if (!this.dead.contains(entry.getSequence())) {
+                Scheduled retry = due.get(entry.getSequence());
+                if (retry == null) {
+                    retry = new Scheduled(entry.getSequence(), 0, now);
+                }
+                else {
+                    this.retries.put(entry.getSequence(), retry);
+                }
+                this.schedule.add(retry);
+            }
+        }
+    }
+
+    /**
+     * A message waiting for its next delivery attempt.
+     */
+    private static final class Scheduled implements Delayed {
+        private final int sequence;
+        private final int attempts;
+        private final long due;
+
+        private Scheduled(int sequence, int attempts, long due) {
+            this.sequence = sequence;
+            this.attempts = attempts;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = this.getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package me.jduv.java.email;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * An SMTP transport that pipelines the envelope (RFC 2920) when the server advertises
+ * PIPELINING. MAIL FROM and every RCPT TO go out together, and the replies are read back
+ * in order afterwards, so the envelope costs one round trip instead of one per command.
+ *
+ * Only the command I/O changes. Reply handling, including which recipients were refused,
+ * partial sends and the resulting exceptions, is still done by SMTPTransport, so refused
+ * recipients come back on the usual SendFailedException as specific InternetAddresses.
+ * DATA is still sent on its own, because SMTPTransport needs its reply before it writes
+ * the message.
+ */
+public class PipeliningTransport extends SMTPTransport {
+    private static final String RCPT_TO = "RCPT TO:";
+    private InternetAddress sender;
+    private Address[] recipients;
+    private boolean pipelining;
+    private boolean mailFromPending;
+    private boolean envelopeSent;
+
+    /**
+     * Initializes a new instance of the PipeliningTransport class. Called by the session.
+     *
+     * @param session
+     *            The session.
+     * @param urlName
+     *            The URL naming the protocol, "smtp" or "smtps".
+     */
+    public PipeliningTransport(Session session, URLName urlName) {
+        super(session, urlName, getProtocol(urlName), "smtps".equals(getProtocol(urlName)));
+    }
+
+    /**
+     * Checks to see if the connected server accepts pipelined commands.
+     *
+     * @return True if it does, false otherwise.
+     */
+    public boolean isPipeliningSupported() {
+        return this.supportsExtension("PIPELINING");
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        Address[] from = message.getFrom();
+        this.sender = from != null && from.length > 0 && from[0] instanceof InternetAddress ?
+                (InternetAddress) from[0] :
+                    null;
+        this.recipients = addresses;
+        this.pipelining = this.isPipeliningSupported() && isPlain(addresses);
+        try {
+            super.sendMessage(message, addresses);
+        } finally {
+            this.sender = null;
+            this.recipients = null;
+            this.pipelining = false;
+            this.mailFromPending = false;
+            this.envelopeSent = false;
+        }
+    }
+
+    @Override
+    protected void mailFrom() throws MessagingException {
+        if (!this.pipelining) {
+            super.mailFrom();
+            return;
+        }
+
+        // Send MAIL FROM but hold its reply back until the recipients are on the wire.
+        this.mailFromPending = true;
+        super.mailFrom();
+    }
+
+    @Override
+    protected void sendCommand(String command) throws MessagingException {
+        if (!this.pipelining || !command.startsWith(RCPT_TO)) {
+            super.sendCommand(command);
+            return;
+        }
+        if (this.envelopeSent) {
+            // Already on the wire, from the first RCPT TO.
+            return;
+        }
+
+        // SMTPTransport builds the same command for every recipient, apart from the
+        // address. Reuse the first one as a template and send them all at once.
+        String first = normalize(((InternetAddress) this.recipients[0]).getAddress());
+        int start = command.indexOf(first, RCPT_TO.length());
+        if (start < 0) {
+            // Not a command we know how to rebuild; finish this envelope one at a time.
+            this.pipelining = false;
+            this.readMailFromReply(0);
+            super.sendCommand(command);
+            return;
+        }
+
+        String suffix = command.substring(start + first.length());
+        for (Address recipient : this.recipients) {
+            super.sendCommand(RCPT_TO + normalize(((InternetAddress) recipient).getAddress()) + suffix);
+        }
+        this.envelopeSent = true;
+        this.readMailFromReply(this.recipients.length);
+    }
+
+    @Override
+    protected int readServerResponse() throws MessagingException {
+        if (this.mailFromPending) {
+            // Answered for real once the recipients are sent.
+            return 250;
+        }
+        return super.readServerResponse();
+    }
+
+    private void readMailFromReply(int pipelinedCommands) throws MessagingException {
+        // If the sender was refused, drain the replies to anything sent after it so the
+        // connection stays in step.
+        this.mailFromPending = false;
+        int code = super.readServerResponse();
+        if (code != 250) {
+            String response = this.getLastServerResponse();
+            for (int i = 0; i < pipelinedCommands; i++) {
+                super.readServerResponse();
+            }
+            throw new SMTPSenderFailedException(this.sender, "MAIL FROM", code, response);
+        }
+    }
+
+    private static String normalize(String address) {
+        return address.startsWith("<") && address.endsWith(">") ? address : "<" + address + ">";
+    }
+
+    private static boolean isPlain(Address[] addresses) {
+        if (addresses == null || addresses.length == 0) {
+            return false;
+        }
+        for (Address address : addresses) {
+            // Groups are expanded by SMTPTransport, which would throw off the command order.
+            if (!(address instanceof InternetAddress) || ((InternetAddress) address).isGroup()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getProtocol(URLName urlName) {
+        return urlName != null && "smtps".equals(urlName.getProtocol()) ? "smtps" : "smtp";
+    }
+}
@@ -0,0 +1,168 @@
+package me.jduv.java.email;
+
+/**
+ * Token bucket rate limiting for one relay, by messages and by recipients per second.
+ * Each bucket holds up to one second's worth of tokens, so short bursts go straight
+ * through and sustained traffic settles at the configured rate. A message with more
+ * recipients than the bucket holds is let through once the bucket is full, and the
+ * overdraft is paid back before anything else goes.
+ *
+ * In adaptive mode the limiter also listens to the server. Every temporary failure reply
+ * (4xx, like 421 or 451) halves the effective rate, at most once a second, and every
+ * success wins a little of it back, down to a sixteenth and up to the configured rate.
+ */
+public final class RateLimiter {
+    private static final double MIN_FACTOR = 1.0 / 16;
+    private static final double RECOVERY_STEP = 0.05;
+    private static final long BACKOFF_INTERVAL_NANOS = 1000000000L;
+    private final double messagesPerSecond;
+    private final double recipientsPerSecond;
+    private final boolean adaptive;
+    private double messageTokens;
+    private double recipientTokens;
+    private double factor;
+    private long refilledAt;
+    private long backedOffAt;
+
+    /**
+     * Initializes a new instance of the RateLimiter class.
+     *
+     * @param messagesPerSecond
+     *            The most messages a second, or zero for no limit.
+     * @param recipientsPerSecond
+     *            The most recipients a second, or zero for no limit.
+     * @param adaptive
+     *            True to slow down when the server reports temporary failures.
+     */
+    public RateLimiter(double messagesPerSecond, double recipientsPerSecond, boolean adaptive) {
+        if (messagesPerSecond < 0 || recipientsPerSecond < 0) {
+            throw new IllegalArgumentException("Rates cannot be negative!");
+        }
+
+        this.messagesPerSecond = messagesPerSecond;
+        this.recipientsPerSecond = recipientsPerSecond;
+        this.adaptive = adaptive;
+        this.messageTokens = getCapacity(messagesPerSecond);
+        this.recipientTokens = getCapacity(recipientsPerSecond);
+        this.factor = 1.0;
+        this.refilledAt = System.nanoTime();
+        this.backedOffAt = this.refilledAt - BACKOFF_INTERVAL_NANOS;
+    }
+
+    /**
+     * Gets the configured message rate.
+     *
+     * @return Messages per second, or zero for no limit.
+     */
+    public double getMessagesPerSecond() {
+        return this.messagesPerSecond;
+    }
+
+    /**
+     * Gets the configured recipient rate.
+     *
+     * @return Recipients per second, or zero for no limit.
+     */
+    public double getRecipientsPerSecond() {
+        return this.recipientsPerSecond;
+    }
+
+    /**
+     * Checks to see if the limiter adapts to temporary failures.
+     *
+     * @return True if it's adaptive, false otherwise.
+     */
+    public boolean isAdaptive() {
+        return this.adaptive;
+    }
+
+    /**
+     * Gets the share of the configured rates currently allowed. Always one unless the
+     * limiter is adaptive.
+     *
+     * @return The rate factor, between one sixteenth and one.
+     */
+    public synchronized double getRateFactor() {
+        return this.factor;
+    }
+
+    /**
+     * Blocks until one message to the target number of recipients may be sent.
+     *
+     * @param recipients
+     *            The number of envelope recipients.
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(int recipients) throws InterruptedException {
+        while (true) {
+            this.refill();
+
+            boolean messagesReady = this.messagesPerSecond == 0 || this.messageTokens >= 1;
+            boolean recipientsReady = this.recipientsPerSecond == 0
+                    || this.recipientTokens >= Math.min(recipients, getCapacity(this.recipientsPerSecond));
+            if (messagesReady && recipientsReady) {
+                if (this.messagesPerSecond > 0) {
+                    this.messageTokens -= 1;
+                }
+                if (this.recipientsPerSecond > 0) {
+                    this.recipientTokens -= recipients;
+                }
+                return;
+            }
+
+            // Sleep until the emptier bucket should have enough.
+            double waitSeconds = 0;
+            if (!messagesReady) {
+                waitSeconds = (1 - this.messageTokens) / (this.messagesPerSecond * this.factor);
+            }
+            if (!recipientsReady) {
+                double needed = Math.min(recipients, getCapacity(this.recipientsPerSecond)) - this.recipientTokens;
+                waitSeconds = Math.max(waitSeconds, needed / (this.recipientsPerSecond * this.factor));
+            }
+            this.wait(Math.max(1, (long) Math.ceil(waitSeconds * 1000)));
+        }
+    }
+
+    /**
+     * Tells the limiter a message went through.
+     */
+    public synchronized void onSuccess() {
+        if (this.adaptive && this.factor < 1.0) {
+            this.refill();
+            this.factor = Math.min(1.0, this.factor + RECOVERY_STEP);
+        }
+    }
+
+    /**
+     * Tells the limiter the server answered with a temporary failure.
+     */
+    public synchronized void onTemporaryFailure() {
+        long now = System.nanoTime();
+        if (this.adaptive && now - this.backedOffAt >= BACKOFF_INTERVAL_NANOS) {
+            this.refill();
+            this.factor = Math.max(MIN_FACTOR, this.factor / 2);
+            this.backedOffAt = now;
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (now - this.refilledAt) / 1e9;
+        this.refilledAt = now;
+
+        if (this.messagesPerSecond > 0) {
+            this.messageTokens = Math.min(
+                    getCapacity(this.messagesPerSecond),
+                    this.messageTokens + seconds * this.messagesPerSecond * this.factor);
+        }
+        if (this.recipientsPerSecond > 0) {
+            this.recipientTokens = Math.min(
+                    getCapacity(this.recipientsPerSecond),
+                    this.recipientTokens + seconds * this.recipientsPerSecond * this.factor);
+        }
+    }
+
+    private static double getCapacity(double rate) {
+        return Math.max(1, rate);
+    }
+}
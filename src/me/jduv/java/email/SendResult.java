@@ -0,0 +1,102 @@
+package me.jduv.java.email;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+
+/**
+ * The outcome of sending a single email.
+ */
+public final class SendResult {
+    private final Email email;
+    private final Exception exception;
+    private final List<Address> rejectedAddresses;
+
+    /**
+     * Initializes a new instance of the SendResult class.
+     *
+     * @param email
+     *            The email that was sent.
+     * @param exception
+     *            The failure, or null if the send succeeded.
+     */
+    protected SendResult(Email email, Exception exception) {
+        this.email = email;
+        this.exception = exception;
+        this.rejectedAddresses = new ArrayList<Address>();
+
+        if (exception instanceof SendFailedException) {
+            Address[] invalid = ((SendFailedException) exception).getInvalidAddresses();
+            if (invalid != null) {
+                for (Address address : invalid) {
+                    this.rejectedAddresses.add(address);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a successful result.
+     *
+     * @param email
+     *            The email.
+     * @return A successful result.
+     */
+    public static SendResult success(Email email) {
+        return new SendResult(email, null);
+    }
+
+    /**
+     * Creates a failed result.
+     *
+     * @param email
+     *            The email.
+     * @param exception
+     *            The failure.
+     * @return A failed result.
+     */
+    public static SendResult failure(Email email, Exception exception) {
+        if (exception == null) {
+            throw new IllegalArgumentException("Exception cannot be null!");
+        }
+        return new SendResult(email, exception);
+    }
+
+    /**
+     * Gets the email.
+     *
+     * @return The email.
+     */
+    public Email getEmail() {
+        return this.email;
+    }
+
+    /**
+     * Checks to see if the email was accepted by the server.
+     *
+     * @return True if the send succeeded, false otherwise.
+     */
+    public boolean isSuccess() {
+        return this.exception == null;
+    }
+
+    /**
+     * Gets the failure.
+     *
+     * @return The exception, or null if the send succeeded.
+     */
+    public Exception getException() {
+        return this.exception;
+    }
+
+    /**
+     * Gets the addresses the server refused. Unmodifiable.
+     *
+     * @return An unmodifiable list of rejected addresses, empty if none were rejected.
+     */
+    public List<Address> getRejectedAddresses() {
+        return java.util.Collections.unmodifiableList(this.rejectedAddresses);
+    }
+}
@@ -0,0 +1,210 @@
+package me.jduv.java.email;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPMessage;
+
+import me.jduv.java.util.Collections;
+
+/**
+ * A message whose bytes have already been written by a MessageWriter. It carries just
+ * enough header state for a transport to build the SMTP envelope, and hands the
+ * serialized bytes over as they are when it's written out. Messages serialized for a
+ * single send hold only their headers and text, and stream their attachments after them.
+ */
+public final class SerializedMessage extends SMTPMessage {
+    private final ByteBuffer bytes;
+    private final List<Attachment> attachments;
+    private final String boundary;
+    private volatile long writtenSize;
+
+    /**
+     * Initializes a new instance of the SerializedMessage class.
+     *
+     * @param session
+     *            The session.
+     * @param email
+     *            The email the bytes were written from.
+     * @param bytes
+     *            The serialized message. Not copied.
+     * @param length
+     *            The number of valid bytes.
+     * @param attachments
+     *            The attachments to stream after the bytes, if they stop before them.
+     * @param boundary
+     *            The part boundary the attachments go between.
+     * @throws MessagingException
+     */
+    SerializedMessage(Session session, Email email, byte[] bytes, int length, List<Attachment> attachments,
+            String boundary) throws MessagingException {
+        super(session);
+        this.bytes = ByteBuffer.wrap(bytes, 0, length);
+        this.attachments = attachments;
+        this.boundary = boundary;
+        this.writtenSize = -1;
+
+        // Envelope only; these headers are never written, the bytes already carry them.
+        this.setFrom(email.getFromAddress());
+        this.setRecipients(Message.RecipientType.TO, email.getToAddresses());
+        this.setRecipients(Message.RecipientType.CC, email.getCcAddresses());
+        this.setRecipients(Message.RecipientType.BCC, email.getBccAddresses());
+    }
+
+    /**
+     * Initializes a new instance of the SerializedMessage class from raw bytes and an
+     * envelope, for messages that were serialized earlier, like those in a spool.
+     *
+     * @param session
+     *            The session.
+     * @param from
+     *            The envelope sender.
+     * @param recipients
+     *            The envelope recipients.
+     * @param bytes
+     *            The serialized message, from its position to its limit. Not copied.
+     * @throws MessagingException
+     */
+    public SerializedMessage(Session session, Address from, Address[] recipients, ByteBuffer bytes)
+            throws MessagingException {
+        this(session, from, recipients, bytes, java.util.Collections.<Attachment> emptyList(), null);
+    }
+
+    /**
+     * Initializes a new instance of the SerializedMessage class from its headers and text,
+     * an envelope, and the attachments to stream after them.
+     *
+     * @param session
+     *            The session.
+     * @param from
+     *            The envelope sender.
+     * @param recipients
+     *            The envelope recipients.
+     * @param bytes
+     *            The serialized message, from its position to its limit. Not copied.
+     * @param attachments
+     *            The attachments to stream after the bytes, if they stop before them.
+     * @param boundary
+     *            The part boundary the attachments go between.
+     * @throws MessagingException
+     */
+    SerializedMessage(Session session, Address from, Address[] recipients, ByteBuffer bytes,
+            List<Attachment> attachments, String boundary) throws MessagingException {
+        super(session);
+        this.bytes = bytes.slice();
+        this.attachments = attachments;
+        this.boundary = boundary;
+        this.writtenSize = -1;
+
+        // Every recipient goes in as BCC; the header block is in the bytes already.
+        this.setFrom(from);
+        this.setRecipients(Message.RecipientType.BCC, recipients);
+    }
+
+    /**
+     * Copies this message out of the writer buffer it shares, so it stays good after the
+     * writer moves on. Attachments are still streamed, not copied.
+     *
+     * @return The copy.
+     * @throws MessagingException
+     */
+    SerializedMessage copy() throws MessagingException {
+        byte[] copy = new byte[this.bytes.remaining()];
+        this.bytes.duplicate().get(copy);
+        return new SerializedMessage(
+                this.session,
+                this.getFrom()[0],
+                this.getAllRecipients(),
+                ByteBuffer.wrap(copy),
+                this.attachments,
+                this.boundary);
+    }
+
+    @Override
+    public void writeTo(OutputStream out, String[] ignoreList) throws IOException, MessagingException {
+        if (this.attachments.isEmpty()) {
+            writeBytes(this.bytes.duplicate(), out);
+            return;
+        }
+
+        CountingOutputStream counter = new CountingOutputStream(out);
+        writeBytes(this.bytes.duplicate(), counter);
+        SmtpDataOutputStream data = new SmtpDataOutputStream(counter, false);
+        MessageWriter.writeAttachments(data, this.attachments, this.boundary);
+        data.flush();
+        this.writtenSize = counter.count;
+    }
+
+    /**
+     * Gets the size of the message. Until a message with attachments has been written out
+     * once, only its headers and text are known, so it answers -1.
+     *
+     * @return The size in bytes, or -1 if it isn't known yet.
+     */
+    @Override
+    public int getSize() {
+        if (this.attachments.isEmpty()) {
+            return this.bytes.remaining();
+        }
+        long size = this.writtenSize;
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    @Override
+    protected void updateHeaders() {
+        // Nothing to update; the serialized bytes are final.
+    }
+
+    private static void writeBytes(ByteBuffer bytes, OutputStream out) throws IOException {
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+        else {
+            byte[] chunk = new byte[Math.min(bytes.remaining(), 8192)];
+            while (bytes.hasRemaining()) {
+                int count = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+    }
+
+    private void setRecipients(Message.RecipientType type, List<InternetAddress> addresses)
+            throws MessagingException {
+        if (!Collections.isNullOrEmpty(addresses)) {
+            this.setRecipients(type, addresses.toArray(new InternetAddress[addresses.size()]));
+        }
+    }
+
+    /**
+     * Counts the bytes passing through, for getSize.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package me.jduv.java.email;
 
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
 import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.sun.mail.smtp.SMTPTransport;
 
 import me.jduv.java.util.Strings;
 
@@ -10,8 +17,19 @@ import me.jduv.java.util.Strings;
  */
 public abstract class SessionProvider {
     public static final int DEFAULT_SMTP_PORT = 25;
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 30000L;
+    public static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
     private final String smtpHost;
     private final int port;
+    private final String hostAndPort;
+    private final int maxConnections;
+    private final long maxIdleMillis;
+    private final int maxMessagesPerConnection;
+    private final boolean pipelining;
+    private final RateLimiter rateLimiter;
+    private volatile Session session;
+    private volatile TransportPool transportPool;
 
     /**
      * Initializes a new instance of the SessionProvider class.
@@ -22,6 +40,17 @@ public abstract class SessionProvider {
     public SessionProvider(SessionProviderBuilder builder) {
         this.smtpHost = builder.getSmtpHost();
         this.port = builder.getPort();
+        this.hostAndPort = this.smtpHost + ":" + this.port;
+        this.maxConnections = builder.getMaxConnections();
+        this.maxIdleMillis = builder.getMaxIdleMillis();
+        this.maxMessagesPerConnection = builder.getMaxMessagesPerConnection();
+        this.pipelining = builder.isPipelining();
+        this.rateLimiter = builder.getMessagesPerSecond() > 0 || builder.getRecipientsPerSecond() > 0 ?
+                new RateLimiter(
+                        builder.getMessagesPerSecond(),
+                        builder.getRecipientsPerSecond(),
+                        builder.isAdaptiveThrottling()) :
+                    null;
     }
 
     /**
@@ -67,11 +96,200 @@ public abstract class SessionProvider {
     }
 
     /**
-     * Gets the session.
+     * Gets the host and port as a single "host:port" string, handy as a per-server key.
+     *
+     * @return The host and port.
+     */
+    public String getHostAndPort() {
+        return this.hostAndPort;
+    }
+
+    /**
+     * Gets the maximum number of pooled connections.
+     *
+     * @return The maximum number of connections.
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Gets how long a pooled connection may sit idle before it's closed.
+     *
+     * @return The maximum idle time in milliseconds.
+     */
+    public long getMaxIdleMillis() {
+        return this.maxIdleMillis;
+    }
+
+    /**
+     * Gets how many messages a pooled connection may carry before it's closed.
+     *
+     * @return The maximum number of messages per connection.
+     */
+    public int getMaxMessagesPerConnection() {
+        return this.maxMessagesPerConnection;
+    }
+
+    /**
+     * Checks to see if sends pipeline their SMTP commands when the server allows it.
+     *
+     * @return True if pipelining is on, false otherwise.
+     */
+    public boolean isPipelining() {
+        return this.pipelining;
+    }
+
+    /**
+     * Gets the rate limiter every send through this provider passes, if any rates were
+     * set.
+     *
+     * @return The rate limiter, or null if sends aren't limited.
+     */
+    public RateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Gets the session. Providers are immutable, so the session is built once on first
+     * use and shared by every send until invalidate() is called.
+     *
+     * @return The session.
+     */
+    public Session getSession() {
+        Session session = this.session;
+        if (session == null) {
+            synchronized (this) {
+                session = this.session;
+                if (session == null) {
+                    session = this.createSession();
+                    if (this.pipelining) {
+                        usePipeliningTransport(session);
+                    }
+                    this.session = session;
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Drops the cached session and swaps in a new connection pool, so the next send builds
+     * both from scratch. Use this when the server behind the provider has changed, say
+     * after a failover or a certificate rollover, and the pooled connections shouldn't be
+     * reused. The old pool is drained rather than closed, so sends already holding it
+     * finish normally.
+     */
+    public void invalidate() {
+        TransportPool pool;
+        synchronized (this) {
+            pool = this.transportPool;
+            this.session = null;
+            this.transportPool = null;
+        }
+        if (pool != null) {
+            pool.drain();
+        }
+    }
+
+    /**
+     * Creates a new session. Called once per provider, or once after each invalidate().
      *
      * @return The session.
      */
-    public abstract Session getSession();
+    protected abstract Session createSession();
+
+    private static void usePipeliningTransport(Session session) {
+        try {
+            for (String protocol : new String[] { "smtp", "smtps" }) {
+                session.setProvider(new Provider(
+                        Provider.Type.TRANSPORT,
+                        protocol,
+                        PipeliningTransport.class.getName(),
+                        "jduv",
+                        null));
+            }
+        } catch (NoSuchProviderException e) {
+            // Can't happen for a non-null provider; fall back to the stock transport.
+        }
+    }
+
+    /**
+     * Gets the connection pool for this provider, creating it on first use.
+     *
+     * @return The transport pool.
+     */
+    public TransportPool getTransportPool() {
+        TransportPool pool = this.transportPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = this.transportPool;
+                if (pool == null) {
+                    pool = new TransportPool(
+                            this,
+                            this.maxConnections,
+                            this.maxIdleMillis,
+                            this.maxMessagesPerConnection);
+                    this.transportPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Sends a message over one of this provider's pooled connections.
+     *
+     * @param message
+     *            The message to send.
+     * @throws MessagingException
+     */
+    public void send(Message message) throws MessagingException {
+        this.getTransportPool().send(message);
+    }
+
+    /**
+     * Opens a new, connected transport. Most callers want getTransportPool() instead.
+     *
+     * @return A connected transport.
+     * @throws MessagingException
+     */
+    public Transport openTransport() throws MessagingException {
+        // Sessions that don't name a transport protocol mean plain SMTP.
+        Session session = this.getSession();
+        String protocol = session.getProperty("mail.transport.protocol");
+        Transport transport = session.getTransport(protocol == null ? "smtp" : protocol);
+
+        long start = System.nanoTime();
+        boolean connected = false;
+        try {
+            this.connect(transport);
+            connected = true;
+        } catch (MessagingException e) {
+            // A 4xx greeting, like 421, is the server telling us to back off.
+            if (this.rateLimiter != null && transport instanceof SMTPTransport) {
+                int code = ((SMTPTransport) transport).getLastReturnCode();
+                if (code >= 400 && code < 500) {
+                    this.rateLimiter.onTemporaryFailure();
+                }
+            }
+            throw e;
+        } finally {
+            EmailMetrics.getListener().onConnect(this.getHostAndPort(), System.nanoTime() - start, connected);
+        }
+        return transport;
+    }
+
+    /**
+     * Connects the target transport. Subclasses that carry credentials override this.
+     *
+     * @param transport
+     *            The transport to connect.
+     * @throws MessagingException
+     */
+    protected void connect(Transport transport) throws MessagingException {
+        transport.connect();
+    }
 
     /**
      * Builds session providers.
@@ -79,6 +297,13 @@ public abstract class SessionProvider {
     public static class Builder implements SessionProviderBuilder {
         private String host;
         private int port;
+        private int maxConnections;
+        private long maxIdleMillis;
+        private int maxMessagesPerConnection;
+        private boolean pipelining;
+        private double messagesPerSecond;
+        private double recipientsPerSecond;
+        private boolean adaptiveThrottling;
 
         /**
          * Creates a default session provider builder.
@@ -108,6 +333,13 @@ public abstract class SessionProvider {
 
             this.host = host;
             this.port = port;
+            this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+            this.maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+            this.maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+            this.pipelining = true;
+            this.messagesPerSecond = 0;
+            this.recipientsPerSecond = 0;
+            this.adaptiveThrottling = false;
         }
 
         @Override
@@ -120,6 +352,143 @@ public abstract class SessionProvider {
             return this.port;
         }
 
+        @Override
+        public int getMaxConnections() {
+            return this.maxConnections;
+        }
+
+        @Override
+        public long getMaxIdleMillis() {
+            return this.maxIdleMillis;
+        }
+
+        @Override
+        public int getMaxMessagesPerConnection() {
+            return this.maxMessagesPerConnection;
+        }
+
+        @Override
+        public boolean isPipelining() {
+            return this.pipelining;
+        }
+
+        @Override
+        public double getMessagesPerSecond() {
+            return this.messagesPerSecond;
+        }
+
+        @Override
+        public double getRecipientsPerSecond() {
+            return this.recipientsPerSecond;
+        }
+
+        @Override
+        public boolean isAdaptiveThrottling() {
+            return this.adaptiveThrottling;
+        }
+
+        /**
+         * Sets the maximum number of pooled connections.
+         *
+         * @param maxConnections
+         *            The maximum number of connections.
+         * @return The builder.
+         */
+        public Builder maxConnections(int maxConnections) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Max connections must be at least one!");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Sets how long a pooled connection may sit idle before it's closed.
+         *
+         * @param maxIdleMillis
+         *            The maximum idle time in milliseconds.
+         * @return The builder.
+         */
+        public Builder maxIdleMillis(long maxIdleMillis) {
+            if (maxIdleMillis < 0) {
+                throw new IllegalArgumentException("Max idle time cannot be negative!");
+            }
+            this.maxIdleMillis = maxIdleMillis;
+            return this;
+        }
+
+        /**
+         * Sets how many messages a pooled connection may carry before it's closed.
+         *
+         * @param maxMessagesPerConnection
+         *            The maximum number of messages per connection.
+         * @return The builder.
+         */
+        public Builder maxMessagesPerConnection(int maxMessagesPerConnection) {
+            if (maxMessagesPerConnection < 1) {
+                throw new IllegalArgumentException("Max messages per connection must be at least one!");
+            }
+            this.maxMessagesPerConnection = maxMessagesPerConnection;
+            return this;
+        }
+
+        /**
+         * Turns SMTP command pipelining on or off. It's on by default, and only ever used
+         * with servers that advertise it.
+         *
+         * @param pipelining
+         *            True to pipeline, false otherwise.
+         * @return The builder.
+         */
+        public Builder pipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        /**
+         * Limits how many messages a second go through the provider. Concurrent
+         * connections are limited by maxConnections.
+         *
+         * @param messagesPerSecond
+         *            The message rate, or zero for no limit.
+         * @return The builder.
+         */
+        public Builder messagesPerSecond(double messagesPerSecond) {
+            if (messagesPerSecond < 0) {
+                throw new IllegalArgumentException("Message rate cannot be negative!");
+            }
+            this.messagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        /**
+         * Limits how many recipients a second the provider sends to.
+         *
+         * @param recipientsPerSecond
+         *            The recipient rate, or zero for no limit.
+         * @return The builder.
+         */
+        public Builder recipientsPerSecond(double recipientsPerSecond) {
+            if (recipientsPerSecond < 0) {
+                throw new IllegalArgumentException("Recipient rate cannot be negative!");
+            }
+            this.recipientsPerSecond = recipientsPerSecond;
+            return this;
+        }
+
+        /**
+         * Makes the rate limits back off when the server answers with temporary failures
+         * (4xx), and recover as sends go through again. Only applies if a rate is set.
+         *
+         * @param adaptiveThrottling
+         *            True to adapt, false otherwise.
+         * @return The builder.
+         */
+        public Builder adaptiveThrottling(boolean adaptiveThrottling) {
+            this.adaptiveThrottling = adaptiveThrottling;
+            return this;
+        }
+
         /**
          * Creates an unauthenticated session provider.
          *
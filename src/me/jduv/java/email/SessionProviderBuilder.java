@@ -18,4 +18,55 @@ public interface SessionProviderBuilder {
      * @return The port.
      */
     public int getPort();
+
+    /**
+     * Gets the maximum number of pooled connections.
+     * 
+     * @return The maximum number of connections.
+     */
+    public int getMaxConnections();
+
+    /**
+     * Gets how long a pooled connection may sit idle, in milliseconds.
+     * 
+     * @return The maximum idle time.
+     */
+    public long getMaxIdleMillis();
+
+    /**
+     * Gets how many messages a pooled connection may carry.
+     * 
+     * @return The maximum number of messages per connection.
+     */
+    public int getMaxMessagesPerConnection();
+
+    /**
+     * Checks to see if sends should pipeline their SMTP commands when the server allows
+     * it.
+     * 
+     * @return True to pipeline, false otherwise.
+     */
+    public boolean isPipelining();
+
+    /**
+     * Gets the most messages a second to send through the provider.
+     * 
+     * @return The message rate, or zero for no limit.
+     */
+    public double getMessagesPerSecond();
+
+    /**
+     * Gets the most recipients a second to send to through the provider.
+     * 
+     * @return The recipient rate, or zero for no limit.
+     */
+    public double getRecipientsPerSecond();
+
+    /**
+     * Checks to see if the rate limits should back off when the server reports
+     * temporary failures.
+     * 
+     * @return True for adaptive throttling, false otherwise.
+     */
+    public boolean isAdaptiveThrottling();
 }
@@ -0,0 +1,125 @@
+package me.jduv.java.email;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Normalizes line endings to CRLF and, optionally, dot-stuffs lines as SMTP's DATA command
+ * requires, all in a single pass over the bytes. Runs of ordinary bytes are passed through
+ * in bulk rather than a byte at a time.
+ */
+public final class SmtpDataOutputStream extends FilterOutputStream {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte DOT = '.';
+    private final boolean dotStuff;
+    private boolean atLineStart;
+    private boolean pendingCr;
+
+    /**
+     * Initializes a new instance of the SmtpDataOutputStream class.
+     *
+     * @param out
+     *            The target stream.
+     * @param dotStuff
+     *            True to double any dot at the start of a line.
+     */
+    public SmtpDataOutputStream(OutputStream out, boolean dotStuff) {
+        super(out);
+        this.dotStuff = dotStuff;
+        this.atLineStart = true;
+        this.pendingCr = false;
+    }
+
+    /**
+     * Checks to see if the last byte written ended a line.
+     *
+     * @return True if the stream is at the start of a line.
+     */
+    public boolean isAtLineStart() {
+        return this.atLineStart && !this.pendingCr;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] single = { (byte) b };
+        this.write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        int runStart = offset;
+
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+
+            if (this.pendingCr) {
+                // Finish the CR left over from the last write. A bare CR still ends the line.
+                this.pendingCr = false;
+                this.atLineStart = true;
+                this.out.write(LF);
+                if (b == LF) {
+                    runStart = i + 1;
+                    continue;
+                }
+            }
+
+            if (b == CR || b == LF || (this.atLineStart && this.dotStuff && b == DOT)) {
+                // Flush the ordinary bytes before the special one.
+                this.out.write(bytes, runStart, i - runStart);
+                runStart = i + 1;
+
+                if (b == CR) {
+                    this.out.write(CR);
+                    if (i + 1 < end && bytes[i + 1] == LF) {
+                        this.out.write(LF);
+                        this.atLineStart = true;
+                        i++;
+                        runStart = i + 1;
+                    }
+                    else {
+                        // The LF, if any, is in the next write.
+                        this.pendingCr = true;
+                    }
+                    continue;
+                }
+                else if (b == LF) {
+                    this.out.write(CR);
+                    this.out.write(LF);
+                    this.atLineStart = true;
+                    continue;
+                }
+                else {
+                    this.out.write(DOT);
+                    this.out.write(DOT);
+                }
+            }
+            this.atLineStart = false;
+        }
+
+        if (end > runStart) {
+            this.out.write(bytes, runStart, end - runStart);
+        }
+    }
+
+    /**
+     * Ends the current line if it hasn't been ended already. Call this before the final
+     * "." of a DATA command.
+     *
+     * @throws IOException
+     */
+    public void endLine() throws IOException {
+        if (this.pendingCr) {
+            this.out.write(LF);
+            this.pendingCr = false;
+            this.atLineStart = true;
+        }
+        else if (!this.atLineStart) {
+            this.out.write(CR);
+            this.out.write(LF);
+            this.atLineStart = true;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package me.jduv.java.email;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Picks SMTP reply codes out of javax.mail exceptions, so callers can tell a temporary
+ * failure (4xx, or no reply at all because the connection broke) from a permanent one
+ * (5xx).
+ */
+public final class SmtpErrors {
+
+    private SmtpErrors() {
+    }
+
+    /**
+     * Gets the most severe SMTP reply code in the target exception's chain. A failed send
+     * chains one exception per refused recipient behind the one for the transaction, so
+     * the whole chain is walked: a 5xx anywhere outranks a 4xx, which outranks any other
+     * code. Among codes of the same class, the first one wins.
+     * 
+     * @param exception
+     *            The exception.
+     * @return The reply code, or -1 if the exception didn't come with one.
+     */
+    public static int getReturnCode(Exception exception) {
+        int worst = -1;
+        Exception current = exception;
+        while (current != null) {
+            int code = -1;
+            if (current instanceof SMTPSendFailedException) {
+                code = ((SMTPSendFailedException) current).getReturnCode();
+            }
+            else if (current instanceof SMTPAddressFailedException) {
+                code = ((SMTPAddressFailedException) current).getReturnCode();
+            }
+            else if (current instanceof SMTPSenderFailedException) {
+                code = ((SMTPSenderFailedException) current).getReturnCode();
+            }
+            if (severity(code) > severity(worst)) {
+                worst = code;
+            }
+
+            Exception next = current instanceof MessagingException ?
+                    ((MessagingException) current).getNextException() :
+                        null;
+            // Guard against a chain that loops back on itself.
+            current = next == exception ? null : next;
+        }
+        return worst;
+    }
+
+    /**
+     * Gets the recipients a failed send still owes a retry: the ones the server put off
+     * with a 4xx, or every unsent recipient if the message itself was put off. Recipients
+     * that were sent to or refused outright aren't included, and neither is anyone if
+     * the server refused the message itself.
+     *
+     * @param exception
+     *            The exception.
+     * @return The recipients to retry, or an empty array if there's nothing left to retry.
+     */
+    public static Address[] getRetryableRecipients(SendFailedException exception) {
+        Address[] unsent = exception.getValidUnsentAddresses();
+        if (unsent == null || unsent.length == 0) {
+            return new Address[0];
+        }
+
+        // A 5xx for the transaction as a whole, rather than for some recipients, means no
+        // one is getting this message.
+        Address[] invalid = exception.getInvalidAddresses();
+        if (exception instanceof SMTPSendFailedException
+                && ((SMTPSendFailedException) exception).getReturnCode() >= 500
+                && (invalid == null || invalid.length == 0)) {
+            return new Address[0];
+        }
+        return unsent;
+    }
+
+    /**
+     * Checks to see if the server permanently refused the message.
+     * 
+     * @param exception
+     *            The exception.
+     * @return True for a 5xx reply, false otherwise.
+     */
+    public static boolean isPermanent(Exception exception) {
+        int code = getReturnCode(exception);
+        return code >= 500 && code < 600;
+    }
+
+    /**
+     * Checks to see if the server took part of the message: it refused some recipients, or
+     * it already accepted some. Either way the server itself is working, and sending the
+     * message again elsewhere would repeat delivery to the recipients it accepted.
+     * 
+     * @param exception
+     *            The exception.
+     * @return True if the server refused or accepted at least one recipient, false
+     *         otherwise.
+     */
+    public static boolean isRecipientFailure(Exception exception) {
+        if (!(exception instanceof SendFailedException)) {
+            return false;
+        }
+        SendFailedException failure = (SendFailedException) exception;
+        Address[] invalid = failure.getInvalidAddresses();
+        Address[] sent = failure.getValidSentAddresses();
+        return (invalid != null && invalid.length > 0) || (sent != null && sent.length > 0);
+    }
+
+    /**
+     * Checks to see if the failure is worth retrying: a 4xx reply, or a failure with no
+     * reply at all, like a dropped connection.
+     * 
+     * @param exception
+     *            The exception.
+     * @return True if the send should be retried later, false otherwise.
+     */
+    public static boolean isTransient(Exception exception) {
+        return !isPermanent(exception);
+    }
+
+    private static int severity(int code) {
+        if (code >= 500 && code < 600) {
+            return 3;
+        }
+        if (code >= 400 && code < 500) {
+            return 2;
+        }
+        return code < 0 ? 0 : 1;
+    }
+}
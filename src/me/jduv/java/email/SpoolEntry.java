@@ -0,0 +1,85 @@
+package me.jduv.java.email;
+
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * The index record for one rendered message in a spool: where its bytes live and who it's
+ * going to.
+ */
+public final class SpoolEntry {
+    private final int sequence;
+    private final InternetAddress fromAddress;
+    private final List<InternetAddress> recipients;
+    private final long offset;
+    private final int length;
+
+    /**
+     * Initializes a new instance of the SpoolEntry class.
+     *
+     * @param sequence
+     *            The entry's sequence number, unique within the spool.
+     * @param fromAddress
+     *            The envelope sender.
+     * @param recipients
+     *            The envelope recipients.
+     * @param offset
+     *            Where the message starts in the spool's data file.
+     * @param length
+     *            The message length in bytes.
+     */
+    protected SpoolEntry(int sequence, InternetAddress fromAddress, List<InternetAddress> recipients, long offset,
+            int length) {
+        this.sequence = sequence;
+        this.fromAddress = fromAddress;
+        this.recipients = java.util.Collections.unmodifiableList(recipients);
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Gets the entry's sequence number. It stays the same when the spool is compacted.
+     *
+     * @return The sequence number.
+     */
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Gets the envelope sender.
+     *
+     * @return The from address.
+     */
+    public InternetAddress getFromAddress() {
+        return this.fromAddress;
+    }
+
+    /**
+     * Gets the envelope recipients. Unmodifiable.
+     *
+     * @return An unmodifiable list of recipients.
+     */
+    public List<InternetAddress> getRecipients() {
+        return this.recipients;
+    }
+
+    /**
+     * Gets where the message starts in the spool's data file.
+     *
+     * @return The offset.
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Gets the message length.
+     *
+     * @return The length in bytes.
+     */
+    public int getLength() {
+        return this.length;
+    }
+}
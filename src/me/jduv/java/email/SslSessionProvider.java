@@ -2,7 +2,6 @@ package me.jduv.java.email;
 
 import java.util.Properties;
 
-import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 
 /**
@@ -21,7 +20,7 @@ public class SslSessionProvider extends AuthenticatedSessionProvider {
     }
 
     @Override
-    public Session getSession() {
+    protected Session createSession() {
         Properties props = new Properties();
         props.put("mail.transport.protocol", "smtps");
         props.put("mail.smtps.auth", "true");
@@ -29,14 +28,7 @@ public class SslSessionProvider extends AuthenticatedSessionProvider {
         props.put("mail.smtps.port", Integer.toString(this.getPort()));
         props.put("mail.smtp.ssl.enable", "true");
 
-        final String username = this.getUsername();
-        final String password = this.getPassword();
-        return Session.getInstance(props,
-                new javax.mail.Authenticator() {
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(username, password);
-                    }
-                });
+        return Session.getInstance(props, this.createAuthenticator());
     }
 
 }
@@ -0,0 +1,60 @@
+package me.jduv.java.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * A data source that pulls its bytes from an attachment source only when the message is
+ * being written out.
+ */
+public final class StreamingDataSource implements DataSource {
+    private final AttachmentSource source;
+    private final String name;
+    private final String contentType;
+
+    /**
+     * Initializes a new instance of the StreamingDataSource class.
+     * 
+     * @param source
+     *            The attachment source.
+     * @param name
+     *            The file name.
+     * @param contentType
+     *            The MIME type.
+     */
+    public StreamingDataSource(AttachmentSource source, String name, String contentType) {
+        if (source == null) {
+            throw new IllegalArgumentException("Source cannot be null!");
+        }
+        if (contentType == null) {
+            throw new IllegalArgumentException("Content type cannot be null!");
+        }
+
+        this.source = source;
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.source.open();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Streaming data sources are read only.");
+    }
+
+    @Override
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+}
@@ -0,0 +1,150 @@
+package me.jduv.java.email;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.FormalArgument;
+
+/**
+ * A bounded, least recently used cache of parsed templates. Creating an ST from a string
+ * lexes and compiles the template every time, which adds up fast during a mail merge where
+ * the same body is rendered for every recipient. This cache keeps one compiled template per
+ * template text, delimiter and attribute names, and hands out cheap instances of it that
+ * only need their attributes bound.
+ */
+public final class TemplateCache {
+    public static final int DEFAULT_MAX_SIZE = 256;
+    private static final TemplateCache DEFAULT_CACHE = new TemplateCache(DEFAULT_MAX_SIZE);
+    private final Map<String, Entry> templates;
+
+    /**
+     * Initializes a new instance of the TemplateCache class.
+     *
+     * @param maxSize
+     *            The maximum number of compiled templates to keep.
+     */
+    public TemplateCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be at least one!");
+        }
+
+        this.templates = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the cache shared by every EmailBody builder.
+     *
+     * @return The default cache.
+     */
+    public static TemplateCache getDefault() {
+        return DEFAULT_CACHE;
+    }
+
+    /**
+     * Gets a fresh template instance for the target text, compiling it only if it isn't
+     * cached already. The instance belongs to the caller; add the named attributes and
+     * render away.
+     *
+     * @param content
+     *            The template text.
+     * @param delimiter
+     *            The delimiter, or null for the StringTemplate default.
+     * @param attributeNames
+     *            The names of the attributes that will be added.
+     * @return A new template instance.
+     */
+    public ST get(String content, Character delimiter, Collection<String> attributeNames) {
+        if (content == null) {
+            throw new IllegalArgumentException("Content cannot be null!");
+        }
+        if (attributeNames == null) {
+            throw new IllegalArgumentException("Attribute names cannot be null!");
+        }
+
+        // The attributes are part of the compiled template, so they're part of the key. The
+        // delimiter and names lead, separated by NULs, so they can't run into the text.
+        TreeSet<String> names = new TreeSet<String>(attributeNames);
+        StringBuilder key = new StringBuilder();
+        key.append(delimiter == null ? '\u0000' : delimiter.charValue());
+        for (String name : names) {
+            key.append(name).append('\u0000');
+        }
+        key.append('\u0000').append(content);
+
+        Entry entry;
+        synchronized (this.templates) {
+            entry = this.templates.get(key.toString());
+        }
+
+        if (entry == null) {
+            // Compile outside the lock. Two threads may race on the same template, which
+            // only costs a redundant compile.
+            entry = new Entry(content, delimiter, names);
+            synchronized (this.templates) {
+                this.templates.put(key.toString(), entry);
+            }
+        }
+
+        return entry.group.createStringTemplate(entry.compiled);
+    }
+
+    /**
+     * Gets the number of cached templates.
+     *
+     * @return The size.
+     */
+    public int size() {
+        synchronized (this.templates) {
+            return this.templates.size();
+        }
+    }
+
+    /**
+     * Drops every cached template.
+     */
+    public void clear() {
+        synchronized (this.templates) {
+            this.templates.clear();
+        }
+    }
+
+    /**
+     * A compiled template along with the group that owns it. Nothing here is modified
+     * after construction, so instances can be created from it on any thread.
+     */
+    private static final class Entry {
+        private final STGroup group;
+        private final CompiledST compiled;
+
+        private Entry(String content, Character delimiter, Collection<String> attributeNames) {
+            this.group = delimiter == null ?
+                    new STGroup() :
+                        new STGroup(delimiter, delimiter);
+
+            // Declaring the attributes up front keeps ST.add from growing the shared
+            // compiled template the way it does for templates created with new ST(...).
+            List<FormalArgument> arguments = new ArrayList<FormalArgument>();
+            for (String name : attributeNames) {
+                arguments.add(new FormalArgument(name));
+            }
+
+            this.compiled = this.group.compile(this.group.getFileName(), null, arguments, content, null);
+            this.compiled.name = ST.UNKNOWN_NAME;
+            this.compiled.defineImplicitlyDefinedTemplates(this.group);
+        }
+    }
+}
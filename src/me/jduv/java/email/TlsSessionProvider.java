@@ -2,7 +2,6 @@ package me.jduv.java.email;
 
 import java.util.Properties;
 
-import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 
 /**
@@ -21,20 +20,13 @@ public class TlsSessionProvider extends AuthenticatedSessionProvider {
     }
 
     @Override
-    public Session getSession() {
+    protected Session createSession() {
         Properties props = new Properties();
         props.put("mail.smtp.auth", "true");
         props.put("mail.smtp.host", this.getSmtpHost());
         props.put("mail.smtp.port", Integer.toString(this.getPort()));
         props.put("mail.smtp.starttls.enable", "true");
 
-        final String username = this.getUsername();
-        final String password = this.getPassword();
-        return Session.getInstance(props,
-                new javax.mail.Authenticator() {
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(username, password);
-                    }
-                });
+        return Session.getInstance(props, this.createAuthenticator());
     }
 }
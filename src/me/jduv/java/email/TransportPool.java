@@ -0,0 +1,387 @@
+package me.jduv.java.email;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+
+/**
+ * A bounded pool of connected transports for a single session provider. Opening an SMTP
+ * connection means a TCP handshake, EHLO, possibly STARTTLS and AUTH, which usually costs
+ * a lot more than the message itself. The pool keeps those connections around and hands
+ * them back out, checking them with a NOOP (or RSET, if the session asks for it) before
+ * they're reused.
+ */
+public final class TransportPool {
+    private final SessionProvider sessionProvider;
+    private final int maxMessagesPerConnection;
+    private final long maxIdleMillis;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Connection> idle;
+    private volatile boolean closed;
+    private volatile boolean draining;
+
+    /**
+     * Initializes a new instance of the TransportPool class.
+     *
+     * @param sessionProvider
+     *            The session provider used to open connections.
+     * @param maxConnections
+     *            The maximum number of open connections.
+     * @param maxIdleMillis
+     *            How long a connection may sit idle before it's evicted.
+     * @param maxMessagesPerConnection
+     *            How many messages a connection may carry before it's retired.
+     */
+    public TransportPool(SessionProvider sessionProvider, int maxConnections, long maxIdleMillis,
+            int maxMessagesPerConnection) {
+        if (sessionProvider == null) {
+            throw new IllegalArgumentException("Session provider cannot be null!");
+        }
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections must be at least one!");
+        }
+        if (maxIdleMillis < 0) {
+            throw new IllegalArgumentException("Max idle time cannot be negative!");
+        }
+        if (maxMessagesPerConnection < 1) {
+            throw new IllegalArgumentException("Max messages per connection must be at least one!");
+        }
+
+        this.sessionProvider = sessionProvider;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.maxIdleMillis = maxIdleMillis;
+        this.permits = new Semaphore(maxConnections, true);
+        this.idle = new LinkedBlockingDeque<Connection>();
+        this.closed = false;
+        this.draining = false;
+    }
+
+    /**
+     * Gets the session provider this pool opens connections with.
+     *
+     * @return The session provider.
+     */
+    public SessionProvider getSessionProvider() {
+        return this.sessionProvider;
+    }
+
+    /**
+     * Gets the number of connections currently parked in the pool.
+     *
+     * @return The idle connection count.
+     */
+    public int getIdleCount() {
+        return this.idle.size();
+    }
+
+    /**
+     * Sends a message over a pooled connection. This is the pooled equivalent of
+     * Transport.send(message).
+     *
+     * @param message
+     *            The message to send.
+     * @throws MessagingException
+     */
+    public void send(Message message) throws MessagingException {
+        this.send(message, message.getAllRecipients());
+    }
+
+    /**
+     * Sends a message over a pooled connection to the target envelope recipients, which
+     * need not be the recipients in its headers. The wait on the rate limiter, if any,
+     * happens before a connection is borrowed, so throttled senders don't tie up the
+     * pool.
+     *
+     * @param message
+     *            The message to send.
+     * @param recipients
+     *            The envelope recipients.
+     * @throws MessagingException
+     */
+    public void send(Message message, Address[] recipients) throws MessagingException {
+        message.saveChanges();
+        acquire(this.sessionProvider.getRateLimiter(), recipients);
+
+        Connection connection = this.borrow();
+        try {
+            connection.deliver(message, recipients);
+        } catch (SendFailedException e) {
+            // The server refused some addresses but the connection itself is fine.
+            this.release(connection);
+            throw e;
+        } catch (MessagingException e) {
+            this.invalidate(connection);
+            throw e;
+        } catch (RuntimeException e) {
+            this.invalidate(connection);
+            throw e;
+        }
+        this.release(connection);
+    }
+
+    /**
+     * Borrows a connection, blocking if the pool is at capacity. Every connection borrowed
+     * must be handed back through either release or invalidate.
+     *
+     * @return A connected transport.
+     * @throws MessagingException
+     *             If a new connection could not be opened or the wait was interrupted.
+     */
+    public Connection borrow() throws MessagingException {
+        if (this.closed) {
+            throw new IllegalStateException("Transport pool has been closed!");
+        }
+
+        try {
+            this.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a pooled connection.", e);
+        }
+
+        try {
+            Connection connection;
+            while ((connection = this.idle.pollFirst()) != null) {
+                if (this.isReusable(connection)) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return new Connection(
+                    this.sessionProvider.openTransport(),
+                    this.sessionProvider.getHostAndPort(),
+                    this.sessionProvider.getRateLimiter());
+        } catch (MessagingException e) {
+            this.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool.
+     *
+     * @param connection
+     *            The connection.
+     */
+    public void release(Connection connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("Connection cannot be null!");
+        }
+
+        if (this.closed || this.draining || connection.getMessageCount() >= this.maxMessagesPerConnection) {
+            connection.close();
+        }
+        else {
+            connection.touch();
+            this.idle.offerFirst(connection);
+            if ((this.closed || this.draining) && this.idle.remove(connection)) {
+                // Lost a race with close or drain, which may already have emptied the pool.
+                connection.close();
+            }
+        }
+        this.permits.release();
+    }
+
+    /**
+     * Discards a connection that failed and frees up its slot.
+     *
+     * @param connection
+     *            The connection.
+     */
+    public void invalidate(Connection connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("Connection cannot be null!");
+        }
+
+        connection.close();
+        this.permits.release();
+    }
+
+    /**
+     * Closes every idle connection that has outlived the maximum idle time. There's no
+     * background thread here; callers that keep a pool around for a long time can call
+     * this periodically, and borrow does the same check lazily.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : this.idle) {
+            if (now - connection.getLastUsed() > this.maxIdleMillis && this.idle.remove(connection)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Retires the pool without cutting off anyone still using it. Idle connections are
+     * closed now and borrowed ones as they're handed back. Borrows keep working, but every
+     * connection is closed after use rather than parked.
+     */
+    public void drain() {
+        this.draining = true;
+
+        Connection connection;
+        while ((connection = this.idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the pool along with every idle connection. Borrowed connections are closed as
+     * they're handed back, and further borrows fail.
+     */
+    public void close() {
+        this.closed = true;
+
+        Connection connection;
+        while ((connection = this.idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    private static void acquire(RateLimiter rateLimiter, Address[] recipients) throws MessagingException {
+        if (rateLimiter != null) {
+            try {
+                rateLimiter.acquire(recipients == null ? 0 : recipients.length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting on the rate limiter.", e);
+            }
+        }
+    }
+
+    private boolean isReusable(Connection connection) {
+        if (connection.getMessageCount() >= this.maxMessagesPerConnection) {
+            return false;
+        }
+        if (System.currentTimeMillis() - connection.getLastUsed() > this.maxIdleMillis) {
+            return false;
+        }
+
+        // SMTPTransport pings the server here (NOOP, or RSET if mail.smtp.userset is on).
+        return connection.getTransport().isConnected();
+    }
+
+    /**
+     * A connected transport checked out of the pool.
+     */
+    public static final class Connection {
+        private final Transport transport;
+        private final String host;
+        private final RateLimiter rateLimiter;
+        private final long createdAt;
+        private long lastUsed;
+        private int messageCount;
+
+        /**
+         * Initializes a new instance of the Connection class.
+         *
+         * @param transport
+         *            The connected transport.
+         * @param host
+         *            The "host:port" the transport is connected to, for metrics.
+         * @param rateLimiter
+         *            The limiter every send must pass, or null for none.
+         */
+        protected Connection(Transport transport, String host, RateLimiter rateLimiter) {
+            this.transport = transport;
+            this.host = host;
+            this.rateLimiter = rateLimiter;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsed = this.createdAt;
+            this.messageCount = 0;
+        }
+
+        /**
+         * Gets the underlying transport.
+         *
+         * @return The transport.
+         */
+        public Transport getTransport() {
+            return this.transport;
+        }
+
+        /**
+         * Gets the time this connection was opened.
+         *
+         * @return The creation time in milliseconds.
+         */
+        public long getCreatedAt() {
+            return this.createdAt;
+        }
+
+        /**
+         * Gets the time this connection was last handed back to the pool.
+         *
+         * @return The last use time in milliseconds.
+         */
+        public long getLastUsed() {
+            return this.lastUsed;
+        }
+
+        /**
+         * Gets the number of messages sent over this connection.
+         *
+         * @return The message count.
+         */
+        public int getMessageCount() {
+            return this.messageCount;
+        }
+
+        /**
+         * Sends a message over this connection, waiting on the provider's rate limiter
+         * first if it has one.
+         *
+         * @param message
+         *            The message. Changes must already be saved.
+         * @param recipients
+         *            The envelope recipients.
+         * @throws MessagingException
+         */
+        public void send(Message message, Address[] recipients) throws MessagingException {
+            acquire(this.rateLimiter, recipients);
+            this.deliver(message, recipients);
+        }
+
+        private void deliver(Message message, Address[] recipients) throws MessagingException {
+            this.messageCount++;
+            long start = System.nanoTime();
+            try {
+                this.transport.sendMessage(message, recipients);
+            } catch (MessagingException e) {
+                EmailMetrics.getListener().onSend(this.host, System.nanoTime() - start, message.getSize(), false);
+                if (this.rateLimiter != null) {
+                    int code = SmtpErrors.getReturnCode(e);
+                    if (code >= 400 && code < 500) {
+                        this.rateLimiter.onTemporaryFailure();
+                    }
+                }
+                throw e;
+            }
+
+            EmailMetrics.getListener().onSend(this.host, System.nanoTime() - start, message.getSize(), true);
+            if (this.rateLimiter != null) {
+                this.rateLimiter.onSuccess();
+            }
+        }
+
+        private void touch() {
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        private void close() {
+            try {
+                this.transport.close();
+            } catch (MessagingException e) {
+                // Nothing useful to do; the connection is being thrown away anyway.
+            }
+        }
+    }
+}
@@ -20,7 +20,7 @@ public class UnauthenticatedSessionProvider extends SessionProvider {
     }
 
     @Override
-    public Session getSession() {
+    protected Session createSession() {
         Properties props = new Properties();
         props.put("mail.smtp.auth", "false");
         props.put("mail.smtp.host", this.getSmtpHost());
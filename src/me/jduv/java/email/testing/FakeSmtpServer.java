@@ -0,0 +1,873 @@
+package me.jduv.java.email.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A small SMTP server that runs in-process, for load tests, latency tests and assertions
+ * about what was sent. Point a session provider at it like any other relay:
+ *
+ * <pre>
+ * FakeSmtpServer server = new FakeSmtpServer.Builder().latencyMillis(5).start();
+ * SessionProvider provider = SessionProvider.unauthenticated("localhost", server.getPort());
+ * ...
+ * server.awaitMessages(100, 10000);
+ * List&lt;ReceivedMessage&gt; messages = server.getMessages();
+ * server.close();
+ * </pre>
+ *
+ * Every connection is served by one selector thread, so a single server keeps up with
+ * tens of thousands of messages a second. It advertises PIPELINING (unless told not to) and
+ * STARTTLS (if given an SSLContext), can hold every reply back by a fixed latency, and can
+ * refuse recipients or fail messages on purpose. Accepted messages are captured unless
+ * capture is turned off.
+ */
+public final class FakeSmtpServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_LINE_BUFFER = 1024 * 1024;
+    private static final byte[] CLOSE = new byte[0];
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final long latencyNanos;
+    private final boolean pipelining;
+    private final SSLContext sslContext;
+    private final Set<String> rejectedRecipients;
+    private final double temporaryFailureRate;
+    private final double permanentFailureRate;
+    private final Random random;
+    private final boolean capture;
+    private final List<ReceivedMessage> messages;
+    private final PriorityQueue<PendingReply> pendingReplies;
+    private final AtomicLong connectionCount;
+    private final AtomicLong acceptedCount;
+    private final AtomicLong rejectedCount;
+    private long replySequence;
+    private volatile boolean running;
+
+    private FakeSmtpServer(Builder builder) throws IOException {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(builder.latencyMillis);
+        this.pipelining = builder.pipelining;
+        this.sslContext = builder.sslContext;
+        this.rejectedRecipients = new HashSet<String>(builder.rejectedRecipients);
+        this.temporaryFailureRate = builder.temporaryFailureRate;
+        this.permanentFailureRate = builder.permanentFailureRate;
+        this.random = new Random(builder.seed);
+        this.capture = builder.capture;
+        this.messages = new ArrayList<ReceivedMessage>();
+        this.pendingReplies = new PriorityQueue<PendingReply>();
+        this.connectionCount = new AtomicLong();
+        this.acceptedCount = new AtomicLong();
+        this.rejectedCount = new AtomicLong();
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.socket().setReuseAddress(true);
+        this.serverChannel.socket().bind(new InetSocketAddress(builder.bindAddress, builder.port), 256);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FakeSmtpServer.this.loop();
+            }
+        }, "fake-smtp-server");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the number of connections accepted so far.
+     *
+     * @return The connection count.
+     */
+    public long getConnectionCount() {
+        return this.connectionCount.get();
+    }
+
+    /**
+     * Gets the number of messages accepted so far, captured or not.
+     *
+     * @return The accepted count.
+     */
+    public long getAcceptedCount() {
+        return this.acceptedCount.get();
+    }
+
+    /**
+     * Gets the number of messages failed on purpose so far.
+     *
+     * @return The rejected count.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Gets a copy of every captured message, in the order they were accepted.
+     *
+     * @return The captured messages.
+     */
+    public List<ReceivedMessage> getMessages() {
+        synchronized (this.messages) {
+            return new ArrayList<ReceivedMessage>(this.messages);
+        }
+    }
+
+    /**
+     * Throws away every captured message and resets the connection, accepted and rejected
+     * counters to zero. Connections already open stay open.
+     */
+    public void reset() {
+        synchronized (this.messages) {
+            this.messages.clear();
+            this.connectionCount.set(0);
+            this.acceptedCount.set(0);
+            this.rejectedCount.set(0);
+        }
+    }
+
+    /**
+     * Waits until the server has accepted at least the target number of messages.
+     *
+     * @param count
+     *            The number of messages to wait for.
+     * @param timeoutMillis
+     *            The longest to wait.
+     * @return True if the messages arrived, false if the wait timed out.
+     * @throws InterruptedException
+     */
+    public boolean awaitMessages(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this.messages) {
+            while (this.acceptedCount.get() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                this.messages.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops the server and drops every connection.
+     */
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.selector.wakeup();
+        try {
+            this.thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (this.running) {
+                long timeoutMillis = 0;
+                PendingReply next = this.pendingReplies.peek();
+                if (next != null) {
+                    timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime()));
+                }
+                this.selector.select(timeoutMillis);
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            this.accept();
+                        }
+                        else {
+                            Client client = (Client) key.attachment();
+                            if (key.isReadable()) {
+                                client.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                client.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(key);
+                    }
+                }
+
+                this.sendDueReplies();
+            }
+        } catch (IOException e) {
+            // The selector broke; nothing left to serve with.
+        } finally {
+            for (SelectionKey key : this.selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                this.selector.close();
+                this.serverChannel.close();
+            } catch (IOException e) {
+                // Shutting down anyway.
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+            Client client = new Client(key, channel);
+            key.attach(client);
+            this.connectionCount.incrementAndGet();
+            client.reply("220 localhost ESMTP FakeSmtpServer");
+        }
+    }
+
+    private void sendDueReplies() {
+        long now = System.nanoTime();
+        PendingReply reply;
+        while ((reply = this.pendingReplies.peek()) != null && reply.due <= now) {
+            this.pendingReplies.poll();
+            if (reply.client.key.isValid()) {
+                try {
+                    reply.client.send(reply.bytes);
+                } catch (IOException e) {
+                    closeQuietly(reply.client.key);
+                }
+            }
+        }
+    }
+
+    private void accepted(ReceivedMessage message) {
+        synchronized (this.messages) {
+            if (message != null) {
+                this.messages.add(message);
+            }
+            this.acceptedCount.incrementAndGet();
+            this.messages.notifyAll();
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+
+    private static String getPath(String argument) {
+        // "FROM:<a@b.com> SIZE=123" -> "a@b.com"
+        int colon = argument.indexOf(':');
+        String path = colon < 0 ? argument : argument.substring(colon + 1).trim();
+        int space = path.indexOf(' ');
+        if (space >= 0) {
+            path = path.substring(0, space);
+        }
+        if (path.startsWith("<") && path.endsWith(">")) {
+            path = path.substring(1, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * A reply held back by the configured latency.
+     */
+    private static final class PendingReply implements Comparable<PendingReply> {
+        private final Client client;
+        private final byte[] bytes;
+        private final long due;
+        private final long sequence;
+
+        private PendingReply(Client client, byte[] bytes, long due, long sequence) {
+            this.client = client;
+            this.bytes = bytes;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PendingReply other) {
+            if (this.due != other.due) {
+                return this.due < other.due ? -1 : 1;
+            }
+            return this.sequence < other.sequence ? -1 : (this.sequence > other.sequence ? 1 : 0);
+        }
+    }
+
+    /**
+     * One client connection and its SMTP conversation.
+     */
+    private final class Client {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private ByteBuffer in;
+        private ByteBuffer out;
+        private SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private boolean startTlsPending;
+        private boolean processing;
+        private boolean data;
+        private String from;
+        private List<String> recipients;
+        private ByteArrayOutputStream content;
+
+        private Client(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+            this.in = ByteBuffer.allocate(8192);
+            this.out = ByteBuffer.allocate(8192);
+            this.recipients = new ArrayList<String>();
+        }
+
+        private void read() throws IOException {
+            int count;
+            if (this.engine == null) {
+                count = this.channel.read(this.in);
+            }
+            else {
+                count = this.channel.read(this.netIn);
+                this.unwrap();
+            }
+            if (count < 0) {
+                closeQuietly(this.key);
+                return;
+            }
+            this.processLines();
+        }
+
+        private void processLines() throws IOException {
+            this.processing = true;
+            this.in.flip();
+            int start = this.in.position();
+            int limit = this.in.limit();
+            for (int i = start; i < limit && !this.startTlsPending; i++) {
+                if (this.in.get(i) != '\n') {
+                    continue;
+                }
+
+                int end = i > start && this.in.get(i - 1) == '\r' ? i - 1 : i;
+                this.processLine(start, end);
+                start = i + 1;
+            }
+            this.in.position(start);
+            this.in.compact();
+            this.processing = false;
+
+            if (this.startTlsPending) {
+                this.flush();
+                return;
+            }
+
+            if (!this.in.hasRemaining()) {
+                if (this.in.capacity() >= MAX_LINE_BUFFER) {
+                    this.in.clear();
+                    this.reply("500 5.5.2 Line too long");
+                    this.schedule(CLOSE);
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(this.in.capacity() * 2);
+                this.in.flip();
+                larger.put(this.in);
+                this.in = larger;
+            }
+        }
+
+        private void processLine(int start, int end) throws IOException {
+            if (this.data) {
+                if (end - start == 1 && this.in.get(start) == '.') {
+                    this.endData();
+                }
+                else if (this.content != null) {
+                    // Undo dot-stuffing.
+                    int from = end > start && this.in.get(start) == '.' ? start + 1 : start;
+                    this.content.write(this.in.array(), this.in.arrayOffset() + from, end - from);
+                    this.content.write('\r');
+                    this.content.write('\n');
+                }
+                return;
+            }
+
+            String line = new String(this.in.array(), this.in.arrayOffset() + start, end - start, ASCII);
+            String verb = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase(Locale.ENGLISH);
+            String argument = line.length() > 5 ? line.substring(5) : "";
+
+            if (verb.equals("EHLO")) {
+                this.resetTransaction();
+                StringBuilder reply = new StringBuilder("250-localhost");
+                if (FakeSmtpServer.this.pipelining) {
+                    reply.append("\r\n250-PIPELINING");
+                }
+                if (FakeSmtpServer.this.sslContext != null && this.engine == null) {
+                    reply.append("\r\n250-STARTTLS");
+                }
+                reply.append("\r\n250-8BITMIME\r\n250 SIZE 52428800");
+                this.reply(reply.toString());
+            }
+            else if (verb.equals("HELO")) {
+                this.resetTransaction();
+                this.reply("250 localhost");
+            }
+            else if (verb.equals("MAIL")) {
+                if (this.from != null) {
+                    this.reply("503 5.5.1 Nested MAIL command");
+                    return;
+                }
+                this.from = getPath(argument);
+                this.reply("250 2.1.0 Ok");
+            }
+            else if (verb.equals("RCPT")) {
+                if (this.from == null) {
+                    this.reply("503 5.5.1 Need MAIL command");
+                    return;
+                }
+                String recipient = getPath(argument);
+                if (FakeSmtpServer.this.rejectedRecipients.contains(recipient.toLowerCase(Locale.ENGLISH))) {
+                    this.reply("550 5.1.1 <" + recipient + ">: Recipient address rejected");
+                    return;
+                }
+                this.recipients.add(recipient);
+                this.reply("250 2.1.5 Ok");
+            }
+            else if (verb.equals("DATA")) {
+                if (this.from == null) {
+                    this.reply("503 5.5.1 Need MAIL command");
+                }
+                else if (this.recipients.isEmpty()) {
+                    this.reply("554 5.5.1 No valid recipients");
+                }
+                else {
+                    this.data = true;
+                    this.content = FakeSmtpServer.this.capture ? new ByteArrayOutputStream(4096) : null;
+                    this.reply("354 End data with <CR><LF>.<CR><LF>");
+                }
+            }
+            else if (verb.equals("RSET")) {
+                this.resetTransaction();
+                this.reply("250 2.0.0 Ok");
+            }
+            else if (verb.equals("NOOP")) {
+                this.reply("250 2.0.0 Ok");
+            }
+            else if (verb.equals("VRFY")) {
+                this.reply("252 2.0.0 Cannot VRFY user");
+            }
+            else if (verb.equals("QUIT")) {
+                this.reply("221 2.0.0 Bye");
+                this.schedule(CLOSE);
+            }
+            else if (line.toUpperCase(Locale.ENGLISH).equals("STARTTLS")
+                    && FakeSmtpServer.this.sslContext != null
+                    && this.engine == null) {
+                // Not delayed; the client waits on it before doing anything else.
+                this.resetTransaction();
+                this.startTlsPending = true;
+                this.send("220 2.0.0 Ready to start TLS\r\n".getBytes(ASCII));
+            }
+            else {
+                this.reply("502 5.5.2 Command not recognized");
+            }
+        }
+
+        private void endData() throws IOException {
+            this.data = false;
+
+            double roll = FakeSmtpServer.this.random.nextDouble();
+            if (roll < FakeSmtpServer.this.permanentFailureRate) {
+                FakeSmtpServer.this.rejectedCount.incrementAndGet();
+                this.reply("554 5.6.0 Message rejected");
+            }
+            else if (roll < FakeSmtpServer.this.permanentFailureRate + FakeSmtpServer.this.temporaryFailureRate) {
+                FakeSmtpServer.this.rejectedCount.incrementAndGet();
+                this.reply("451 4.3.0 Try again later");
+            }
+            else {
+                FakeSmtpServer.this.accepted(this.content == null ?
+                        null :
+                            new ReceivedMessage(this.from, this.recipients, this.content.toByteArray()));
+                this.reply("250 2.0.0 Ok: queued");
+            }
+            this.resetTransaction();
+        }
+
+        private void resetTransaction() {
+            this.from = null;
+            this.recipients = new ArrayList<String>();
+            this.content = null;
+        }
+
+        private void reply(String reply) throws IOException {
+            this.schedule((reply + "\r\n").getBytes(ASCII));
+        }
+
+        private void schedule(byte[] bytes) throws IOException {
+            if (FakeSmtpServer.this.latencyNanos == 0) {
+                this.send(bytes);
+            }
+            else {
+                FakeSmtpServer.this.pendingReplies.add(new PendingReply(
+                        this,
+                        bytes,
+                        System.nanoTime() + FakeSmtpServer.this.latencyNanos,
+                        FakeSmtpServer.this.replySequence++));
+            }
+        }
+
+        private void send(byte[] bytes) throws IOException {
+            if (bytes == CLOSE) {
+                // QUIT: close once everything queued has gone out.
+                this.flush();
+                closeQuietly(this.key);
+                return;
+            }
+
+            if (this.out.remaining() < bytes.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(this.out.capacity() * 2, this.out.position() + bytes.length));
+                this.out.flip();
+                larger.put(this.out);
+                this.out = larger;
+            }
+            this.out.put(bytes);
+            this.flush();
+        }
+
+        private void flush() throws IOException {
+            if (this.engine == null) {
+                this.out.flip();
+                this.channel.write(this.out);
+                this.out.compact();
+
+                if (this.startTlsPending && !this.processing && this.out.position() == 0) {
+                    this.startTls();
+                }
+            }
+            else {
+                this.wrap();
+            }
+
+            boolean pending = this.out.position() > 0 || (this.netOut != null && this.netOut.position() > 0);
+            if (this.key.isValid()) {
+                this.key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        private void startTls() throws SSLException {
+            this.engine = FakeSmtpServer.this.sslContext.createSSLEngine();
+            this.engine.setUseClientMode(false);
+            this.engine.beginHandshake();
+
+            int packetSize = this.engine.getSession().getPacketBufferSize();
+            this.netIn = ByteBuffer.allocate(packetSize);
+            this.netOut = ByteBuffer.allocate(packetSize);
+            // Anything the client sent after STARTTLS is discarded, as RFC 3207 requires.
+            this.in = ByteBuffer.allocate(Math.max(this.in.capacity(), this.engine.getSession().getApplicationBufferSize()));
+            this.startTlsPending = false;
+        }
+
+        private void unwrap() throws IOException {
+            this.netIn.flip();
+            while (true) {
+                SSLEngineResult result = this.engine.unwrap(this.netIn, this.in);
+                this.runDelegatedTasks();
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    ByteBuffer larger = ByteBuffer.allocate(this.in.capacity() * 2);
+                    this.in.flip();
+                    larger.put(this.in);
+                    this.in = larger;
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    closeQuietly(this.key);
+                    break;
+                }
+                boolean wrapped = false;
+                if (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    this.flush();
+                    wrapped = this.netOut.position() == 0;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || (!wrapped && result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                    break;
+                }
+            }
+            this.netIn.compact();
+
+            if (!this.netIn.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(this.netIn.capacity() * 2);
+                this.netIn.flip();
+                larger.put(this.netIn);
+                this.netIn = larger;
+            }
+        }
+
+        private void wrap() throws IOException {
+            while (true) {
+                this.out.flip();
+                SSLEngineResult result = this.engine.wrap(this.out, this.netOut);
+                this.out.compact();
+                this.runDelegatedTasks();
+
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    ByteBuffer larger = ByteBuffer.allocate(this.netOut.capacity() * 2);
+                    this.netOut.flip();
+                    larger.put(this.netOut);
+                    this.netOut = larger;
+                    continue;
+                }
+
+                this.netOut.flip();
+                this.channel.write(this.netOut);
+                boolean blocked = this.netOut.hasRemaining();
+                this.netOut.compact();
+
+                boolean more = this.out.position() > 0
+                        || this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+                if (blocked || !more || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    break;
+                }
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = this.engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Builds and starts fake servers.
+     */
+    public static class Builder {
+        private InetAddress bindAddress;
+        private int port;
+        private long latencyMillis;
+        private boolean pipelining;
+        private SSLContext sslContext;
+        private final Set<String> rejectedRecipients;
+        private double temporaryFailureRate;
+        private double permanentFailureRate;
+        private long seed;
+        private boolean capture;
+
+        /**
+         * Initializes a new instance of the Builder class, for a server on a free
+         * loopback port with no latency, no failures, PIPELINING on and capture on.
+         */
+        public Builder() {
+            this.bindAddress = InetAddress.getLoopbackAddress();
+            this.port = 0;
+            this.latencyMillis = 0;
+            this.pipelining = true;
+            this.sslContext = null;
+            this.rejectedRecipients = new HashSet<String>();
+            this.temporaryFailureRate = 0;
+            this.permanentFailureRate = 0;
+            this.seed = 0;
+            this.capture = true;
+        }
+
+        /**
+         * Sets the address to listen on.
+         *
+         * @param bindAddress
+         *            The address.
+         * @return The builder.
+         */
+        public Builder bindAddress(InetAddress bindAddress) {
+            if (bindAddress == null) {
+                throw new IllegalArgumentException("Bind address cannot be null!");
+            }
+            this.bindAddress = bindAddress;
+            return this;
+        }
+
+        /**
+         * Sets the port to listen on.
+         *
+         * @param port
+         *            The port, or zero for any free port.
+         * @return The builder.
+         */
+        public Builder port(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port number! It's out of range.");
+            }
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Holds every reply back by a fixed time, like a server on the far side of a slow
+         * link.
+         *
+         * @param latencyMillis
+         *            The delay in milliseconds.
+         * @return The builder.
+         */
+        public Builder latencyMillis(long latencyMillis) {
+            if (latencyMillis < 0) {
+                throw new IllegalArgumentException("Latency cannot be negative!");
+            }
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        /**
+         * Turns the PIPELINING extension on or off.
+         *
+         * @param pipelining
+         *            True to advertise it, false otherwise.
+         * @return The builder.
+         */
+        public Builder pipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        /**
+         * Turns on STARTTLS, using the target context for the server side.
+         *
+         * @param sslContext
+         *            A context with the server's key material.
+         * @return The builder.
+         */
+        public Builder startTls(SSLContext sslContext) {
+            if (sslContext == null) {
+                throw new IllegalArgumentException("SSL context cannot be null!");
+            }
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        /**
+         * Makes the server refuse a recipient with a 550.
+         *
+         * @param address
+         *            The address to refuse.
+         * @return The builder.
+         */
+        public Builder rejectRecipient(String address) {
+            if (address == null) {
+                throw new IllegalArgumentException("Address cannot be null!");
+            }
+            this.rejectedRecipients.add(address.toLowerCase(Locale.ENGLISH));
+            return this;
+        }
+
+        /**
+         * Fails a share of messages with a 451 at the end of DATA.
+         *
+         * @param temporaryFailureRate
+         *            The share, from 0 to 1.
+         * @return The builder.
+         */
+        public Builder temporaryFailureRate(double temporaryFailureRate) {
+            if (temporaryFailureRate < 0 || temporaryFailureRate > 1) {
+                throw new IllegalArgumentException("Failure rate must be between 0 and 1!");
+            }
+            this.temporaryFailureRate = temporaryFailureRate;
+            return this;
+        }
+
+        /**
+         * Fails a share of messages with a 554 at the end of DATA.
+         *
+         * @param permanentFailureRate
+         *            The share, from 0 to 1.
+         * @return The builder.
+         */
+        public Builder permanentFailureRate(double permanentFailureRate) {
+            if (permanentFailureRate < 0 || permanentFailureRate > 1) {
+                throw new IllegalArgumentException("Failure rate must be between 0 and 1!");
+            }
+            this.permanentFailureRate = permanentFailureRate;
+            return this;
+        }
+
+        /**
+         * Seeds the random failures, so a run can be repeated exactly.
+         *
+         * @param seed
+         *            The seed.
+         * @return The builder.
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Turns message capture on or off. Turn it off for long load tests; accepted
+         * messages are still counted.
+         *
+         * @param capture
+         *            True to keep accepted messages, false otherwise.
+         * @return The builder.
+         */
+        public Builder capture(boolean capture) {
+            this.capture = capture;
+            return this;
+        }
+
+        /**
+         * Starts the server.
+         *
+         * @return The running server.
+         * @throws IOException
+         *             If the server socket could not be bound.
+         */
+        public FakeSmtpServer start() throws IOException {
+            if (this.temporaryFailureRate + this.permanentFailureRate > 1) {
+                throw new IllegalStateException("Failure rates cannot add up to more than 1!");
+            }
+            return new FakeSmtpServer(this);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package me.jduv.java.email.testing;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A message captured by a FakeSmtpServer: the envelope it arrived with and its bytes, with
+ * dot-stuffing undone.
+ */
+public final class ReceivedMessage {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private final String from;
+    private final List<String> recipients;
+    private final byte[] data;
+
+    /**
+     * Initializes a new instance of the ReceivedMessage class.
+     *
+     * @param from
+     *            The envelope sender.
+     * @param recipients
+     *            The accepted envelope recipients.
+     * @param data
+     *            The message bytes. Not copied.
+     */
+    protected ReceivedMessage(String from, List<String> recipients, byte[] data) {
+        this.from = from;
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.data = data;
+    }
+
+    /**
+     * Gets the envelope sender, as given in MAIL FROM.
+     *
+     * @return The sender address, without angle brackets.
+     */
+    public String getFrom() {
+        return this.from;
+    }
+
+    /**
+     * Gets the accepted envelope recipients, as given in RCPT TO.
+     *
+     * @return An unmodifiable list of addresses, without angle brackets.
+     */
+    public List<String> getRecipients() {
+        return this.recipients;
+    }
+
+    /**
+     * Gets the raw message bytes.
+     *
+     * @return The message, headers and all.
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * Gets the message as text. Every byte maps to one character, so nothing is lost on
+     * 8-bit content.
+     *
+     * @return The message text.
+     */
+    public String getContent() {
+        return new String(this.data, ISO_8859_1);
+    }
+}
@@ -0,0 +1,97 @@
+package me.jduv.java.email.testing;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.jduv.java.email.MxResolver;
+
+/**
+ * An MX resolver that answers from a fixed table instead of DNS, for tests that have to run
+ * offline. Domains not in the table resolve to the default hosts if there are any, and
+ * don't exist otherwise. Lookups are counted, so tests can check what was cached.
+ *
+ * <pre>
+ * StaticMxResolver resolver = new StaticMxResolver()
+ *         .add("example.com", "mx1.example.com", "mx2.example.com")
+ *         .add("example.org", "localhost");
+ * </pre>
+ */
+public final class StaticMxResolver implements MxResolver {
+    private final Map<String, List<String>> records;
+    private final AtomicLong lookups;
+    private volatile List<String> defaultHosts;
+
+    /**
+     * Initializes a new instance of the StaticMxResolver class with an empty table.
+     */
+    public StaticMxResolver() {
+        this.records = new ConcurrentHashMap<String, List<String>>();
+        this.lookups = new AtomicLong();
+        this.defaultHosts = null;
+    }
+
+    /**
+     * Sets the exchangers for a domain, replacing any already set. Pass none to give the
+     * domain no MX records at all.
+     * 
+     * @param domain
+     *            The domain.
+     * @param hosts
+     *            The exchangers, most preferred first.
+     * @return The resolver.
+     */
+    public StaticMxResolver add(String domain, String... hosts) {
+        if (domain == null) {
+            throw new IllegalArgumentException("Domain cannot be null!");
+        }
+        this.records.put(domain.toLowerCase(Locale.ENGLISH),
+                Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(hosts))));
+        return this;
+    }
+
+    /**
+     * Sets the exchangers for every domain not in the table.
+     * 
+     * @param hosts
+     *            The exchangers, most preferred first.
+     * @return The resolver.
+     */
+    public StaticMxResolver setDefault(String... hosts) {
+        this.defaultHosts = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(hosts)));
+        return this;
+    }
+
+    /**
+     * Gets the number of lookups so far.
+     * 
+     * @return The lookup count.
+     */
+    public long getLookupCount() {
+        return this.lookups.get();
+    }
+
+    @Override
+    public List<String> resolve(String domain) throws IOException {
+        if (domain == null) {
+            throw new IllegalArgumentException("Domain cannot be null!");
+        }
+
+        this.lookups.incrementAndGet();
+        List<String> hosts = this.records.get(domain.toLowerCase(Locale.ENGLISH));
+        if (hosts == null) {
+            hosts = this.defaultHosts;
+        }
+        if (hosts == null) {
+            throw new UnknownHostException(domain);
+        }
+        return hosts;
+    }
+}